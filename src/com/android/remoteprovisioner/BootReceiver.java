@@ -17,6 +17,7 @@
 package com.android.remoteprovisioner;
 
 import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
@@ -42,40 +43,100 @@ public class BootReceiver extends BroadcastReceiver {
     private static final String TAG = "RemoteProvisioningBootReceiver";
     private static final String SERVICE = "android.security.remoteprovisioning";
 
-    private static final Duration SCHEDULER_PERIOD = Duration.ofDays(1);
-
     private static final int ESTIMATED_DOWNLOAD_BYTES_STATIC = 2300;
     private static final int ESTIMATED_X509_CERT_BYTES = 540;
     private static final int ESTIMATED_UPLOAD_BYTES_STATIC = 600;
     private static final int ESTIMATED_CSR_KEY_BYTES = 44;
 
+    private static final Duration MIN_PERIOD =
+            Duration.ofHours(SettingsManager.SCHEDULER_PERIOD_HOURS_MIN);
+
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.i(TAG, "Caught boot intent, waking up.");
         SettingsManager.generateAndSetId(context);
+        scheduleProvisioningJob(context);
+    }
+
+    /**
+     * Schedules the provisioning job, replacing any existing one. Scheduling replaces a
+     * running instance of the job, so this must not be called from inside the job before it has
+     * finished.
+     *
+     * Rather than waking at a fixed period, the job is scheduled by {@link ExpiryIndex} to run
+     * in the first half of the expiring_by window of the next keys due to expire that it hasn't
+     * already checked, or after the scheduler period configured by the server if that is sooner.
+     * It remains a periodic job so that it still runs again if a run is cut short before it can
+     * reschedule itself.
+     *
+     * The job is delayed by this device's offset within the schedule spread window, so that a
+     * fleet of devices which boot together doesn't call the server together. The offset is at
+     * most half the flex window, so the job still runs well before the keys expire. Fills
+     * requested through GenerateRkpKeyService when a pool runs dry are not scheduled here and so
+     * are never delayed.
+     *
+     * If the last run failed, the job is instead scheduled to run once after the delay chosen by
+     * {@link RetryPolicy}, which is jittered in the same way. JobScheduler backs off from there
+     * if the retry is stopped before it finishes, and the retry puts the periodic job back once
+     * it has run.
+     */
+    public static void scheduleProvisioningJob(Context context) {
         // An average call transmits about 500 bytes total. These calculations are for the
-        // once a month wake-up where provisioning occurs, where the expected bytes sent is closer
-        // to 8-10KB.
+        // wake-up where provisioning occurs, where the expected bytes sent is closer to 8-10KB.
+        // The sizes observed by ServerInterface are used once there are some, and these constants
+        // until then.
         int numKeysNeeded = max(SettingsManager.getExtraSignedKeysAvailable(context),
                                 calcNumPotentialKeysToDownload());
-        int estimatedDlBytes =
-                ESTIMATED_DOWNLOAD_BYTES_STATIC + (ESTIMATED_X509_CERT_BYTES * numKeysNeeded);
-        int estimatedUploadBytes =
-                ESTIMATED_UPLOAD_BYTES_STATIC + (ESTIMATED_CSR_KEY_BYTES * numKeysNeeded);
+        long estimatedDlBytes = NetworkByteEstimator.estimateDownloadBytes(context, numKeysNeeded);
+        if (estimatedDlBytes < 0) {
+            estimatedDlBytes =
+                    ESTIMATED_DOWNLOAD_BYTES_STATIC + (ESTIMATED_X509_CERT_BYTES * numKeysNeeded);
+        }
+        long estimatedUploadBytes =
+                NetworkByteEstimator.estimateUploadBytes(context, numKeysNeeded);
+        if (estimatedUploadBytes < 0) {
+            estimatedUploadBytes =
+                    ESTIMATED_UPLOAD_BYTES_STATIC + (ESTIMATED_CSR_KEY_BYTES * numKeysNeeded);
+        }
 
-        JobInfo info = new JobInfo
+        JobInfo.Builder builder = new JobInfo
                 .Builder(1, new ComponentName(context, PeriodicProvisioner.class))
                 .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
-                .setEstimatedNetworkBytes(estimatedDlBytes, estimatedUploadBytes)
-                .setPeriodic(SCHEDULER_PERIOD.toMillis())
-                .build();
+                .setEstimatedNetworkBytes(estimatedDlBytes, estimatedUploadBytes);
+        Duration retryDelay = RetryPolicy.getRetryDelay(context);
+        if (retryDelay != null) {
+            Log.i(TAG, "Scheduling provisioning retry in " + retryDelay.toMillis() + "ms");
+            builder.setMinimumLatency(retryDelay.toMillis())
+                    .setBackoffCriteria(max(JobInfo.MIN_BACKOFF_MILLIS, retryDelay.toMillis()),
+                            JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+            schedule(context, builder.build());
+            return;
+        }
+
+        Duration expiringBy = SettingsManager.getExpiringBy(context);
+        Duration maxInterval = SettingsManager.getSchedulerPeriod(context);
+        Duration delay = ExpiryIndex.getNextCheckDelay(
+                context, System.currentTimeMillis(), expiringBy, maxInterval);
+        long flexMs = expiringBy.toMillis() / 2;
+        long jitterMs = min(SettingsManager.getScheduleJitter(context).toMillis(), flexMs / 2);
+        // The jitter comes off the capped period rather than on top of it, so that the job still
+        // runs before the keys the ExpiryIndex has not checked enter the expiring_by window, and
+        // devices are still spread out when the scheduler period is what caps it.
+        long periodMs = max(MIN_PERIOD.toMillis(),
+                min(maxInterval.toMillis(), delay.toMillis() + flexMs) - jitterMs);
+        flexMs = max(JobInfo.getMinFlexMillis(), min(flexMs, periodMs));
+        Log.i(TAG, "Scheduling provisioning job with period " + periodMs + "ms");
+        schedule(context, builder.setPeriodic(periodMs, flexMs).build());
+    }
+
+    private static void schedule(Context context, JobInfo info) {
         if (((JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE)).schedule(info)
                 != JobScheduler.RESULT_SUCCESS) {
             Log.e(TAG, "Could not start the job scheduler for provisioning");
         }
     }
 
-    private int calcNumPotentialKeysToDownload() {
+    private static int calcNumPotentialKeysToDownload() {
         try {
             IRemoteProvisioning binder =
                 IRemoteProvisioning.Stub.asInterface(ServiceManager.getService(SERVICE));
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import java.nio.charset.StandardCharsets;
+
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.MajorType;
+
+/**
+ * A minimal, forward-only CBOR reader that walks an encoded buffer in place. Unlike CborDecoder,
+ * it does not build a DataItem tree; callers pull item headers one at a time and can record the
+ * offsets of byte strings or whole data items in order to reference them without copying.
+ *
+ * Only definite length encodings are supported, which is all that the provisioning server and
+ * KeyMint produce. Every length that is read is checked against the bytes remaining in the
+ * buffer, so a malformed length can never cause a large allocation or a read past the end.
+ */
+public class CborReader {
+    public static final int MAX_NESTING_DEPTH = 16;
+
+    private static final int ADDITIONAL_INFO_MASK = 0x1f;
+    private static final int ONE_BYTE_ARGUMENT = 24;
+    private static final int TWO_BYTE_ARGUMENT = 25;
+    private static final int FOUR_BYTE_ARGUMENT = 26;
+    private static final int EIGHT_BYTE_ARGUMENT = 27;
+    private static final int INDEFINITE_LENGTH = 31;
+
+    private final byte[] mBuffer;
+    private final int mEnd;
+    private int mPosition;
+
+    /**
+     * Creates a reader over the entirety of {@code buffer}.
+     */
+    public CborReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Creates a reader over {@code length} bytes of {@code buffer}, starting at {@code offset}.
+     */
+    public CborReader(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffer.length - length) {
+            throw new IndexOutOfBoundsException("Invalid range: " + offset + ", " + length);
+        }
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * Returns the buffer this reader walks over.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the offset in the buffer of the next byte to be read.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Returns {@code true} if there are unread bytes left in the buffer.
+     */
+    public boolean hasRemaining() {
+        return mPosition < mEnd;
+    }
+
+    /**
+     * Returns the major type of the next data item without consuming it.
+     */
+    public MajorType peekMajorType() throws CborException {
+        if (mPosition >= mEnd) {
+            throw new CborException("Unexpected end of CBOR data at offset " + mPosition);
+        }
+        return MajorType.ofByte(mBuffer[mPosition] & 0xff);
+    }
+
+    /**
+     * Consumes an array header and returns the number of entries in the array.
+     */
+    public int readArrayHeader() throws CborException {
+        return readCount(MajorType.ARRAY, 1 /* minItemSize */);
+    }
+
+    /**
+     * Consumes a map header and returns the number of key/value pairs in the map.
+     */
+    public int readMapHeader() throws CborException {
+        return readCount(MajorType.MAP, 2 /* minItemSize */);
+    }
+
+    /**
+     * Consumes a byte string header and returns the length of the content. The reader is left
+     * positioned at the first byte of the content, which the caller must then {@link #skip}.
+     */
+    public int readByteStringHeader() throws CborException {
+        return readCount(MajorType.BYTE_STRING, 1 /* minItemSize */);
+    }
+
+    /**
+     * Consumes an unsigned integer and returns its value.
+     */
+    public long readUnsignedInteger() throws CborException {
+        long value = readArgument(MajorType.UNSIGNED_INTEGER);
+        if (value < 0) {
+            throw new CborException("Unsigned integer does not fit in a long at offset "
+                    + mPosition);
+        }
+        return value;
+    }
+
+    /**
+     * Consumes a tag header and returns the tag number. The tagged item follows.
+     */
+    public long readTag() throws CborException {
+        return readArgument(MajorType.TAG);
+    }
+
+    /**
+     * Consumes a UTF-8 text string and returns it.
+     */
+    public String readUnicodeString() throws CborException {
+        int length = readCount(MajorType.UNICODE_STRING, 1 /* minItemSize */);
+        String value = new String(mBuffer, mPosition, length, StandardCharsets.UTF_8);
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Advances the reader by {@code length} raw bytes.
+     */
+    public void skip(int length) throws CborException {
+        if (length < 0 || length > mEnd - mPosition) {
+            throw new CborException("Cannot skip " + length + " bytes at offset " + mPosition);
+        }
+        mPosition += length;
+    }
+
+    /**
+     * Skips over one complete data item, including all of its nested contents. This is done
+     * iteratively by counting the items still owed by each open array, map and tag, so nested
+     * input cannot overflow the stack. Items nested more than {@link #MAX_NESTING_DEPTH} deep are
+     * rejected, since nothing the server or KeyMint legitimately sends comes close.
+     */
+    public void skipItem() throws CborException {
+        long[] pending = new long[MAX_NESTING_DEPTH + 1];
+        int depth = 0;
+        pending[0] = 1;
+        while (depth >= 0) {
+            if (pending[depth] == 0) {
+                depth--;
+                continue;
+            }
+            pending[depth]--;
+            MajorType type = peekMajorType();
+            long nested;
+            switch (type) {
+                case UNSIGNED_INTEGER:
+                case NEGATIVE_INTEGER:
+                case SPECIAL:
+                    readArgument(type);
+                    continue;
+                case BYTE_STRING:
+                case UNICODE_STRING:
+                    skip(readCount(type, 1 /* minItemSize */));
+                    continue;
+                case ARRAY:
+                    nested = readCount(type, 1 /* minItemSize */);
+                    break;
+                case MAP:
+                    nested = 2L * readCount(type, 2 /* minItemSize */);
+                    break;
+                case TAG:
+                    readArgument(type);
+                    nested = 1;
+                    break;
+                default:
+                    throw new CborException("Invalid CBOR major type at offset " + mPosition);
+            }
+            if (nested > 0) {
+                if (depth == MAX_NESTING_DEPTH) {
+                    throw new CborException("Nesting deeper than " + MAX_NESTING_DEPTH
+                            + " at offset " + mPosition);
+                }
+                pending[++depth] = nested;
+            }
+        }
+    }
+
+    /**
+     * Reads a header of the given major type whose argument is a count of bytes or items, and
+     * checks that the count can actually be satisfied by the bytes remaining in the buffer.
+     */
+    private int readCount(MajorType expected, int minItemSize) throws CborException {
+        long count = readArgument(expected);
+        if (count < 0 || count > (mEnd - mPosition) / minItemSize) {
+            throw new CborException("Declared " + expected.name() + " length " + count
+                    + " exceeds the remaining " + (mEnd - mPosition) + " bytes");
+        }
+        return (int) count;
+    }
+
+    private long readArgument(MajorType expected) throws CborException {
+        MajorType actual = peekMajorType();
+        if (actual != expected) {
+            throw new CborException("Expected " + expected.name() + " at offset " + mPosition
+                    + ". Actual: " + actual.name());
+        }
+        int additionalInfo = mBuffer[mPosition++] & ADDITIONAL_INFO_MASK;
+        int argumentSize;
+        switch (additionalInfo) {
+            case ONE_BYTE_ARGUMENT:
+                argumentSize = 1;
+                break;
+            case TWO_BYTE_ARGUMENT:
+                argumentSize = 2;
+                break;
+            case FOUR_BYTE_ARGUMENT:
+                argumentSize = 4;
+                break;
+            case EIGHT_BYTE_ARGUMENT:
+                argumentSize = 8;
+                break;
+            case INDEFINITE_LENGTH:
+                throw new CborException("Indefinite length encoding is not supported");
+            default:
+                if (additionalInfo > ONE_BYTE_ARGUMENT) {
+                    throw new CborException("Reserved additional info " + additionalInfo);
+                }
+                return additionalInfo;
+        }
+        if (argumentSize > mEnd - mPosition) {
+            throw new CborException("Truncated CBOR header at offset " + mPosition);
+        }
+        long value = 0;
+        for (int i = 0; i < argumentSize; i++) {
+            value = (value << 8) | (mBuffer[mPosition++] & 0xff);
+        }
+        return value;
+    }
+}
@@ -20,24 +20,13 @@ import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborEncoder;
 import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.model.Array;
-import co.nstant.in.cbor.model.ByteString;
-import co.nstant.in.cbor.model.DataItem;
 import co.nstant.in.cbor.model.MajorType;
-import co.nstant.in.cbor.model.Map;
-import co.nstant.in.cbor.model.UnicodeString;
-import co.nstant.in.cbor.model.UnsignedInteger;
 
 public class CborUtils {
     public static final int EC_CURVE_P256 = 1;
@@ -46,26 +35,33 @@ public class CborUtils {
     public static final String EXTRA_KEYS = "num_extra_attestation_keys";
     public static final String TIME_TO_REFRESH = "time_to_refresh_hours";
     public static final String PROVISIONING_URL = "provisioning_url";
+    public static final String CSR_BATCH_SIZE = "csr_batch_size";
+    public static final String KEY_GENERATION_PAUSE = "key_generation_pause_ms";
+    public static final String SERVER_TIMEOUT = "server_timeout_ms";
+    public static final String SCHEDULER_PERIOD = "scheduler_period_hours";
+    public static final String SCHEDULE_SPREAD = "schedule_spread_minutes";
+    public static final String DEMAND_CONFIDENCE = "demand_confidence_percent";
+    public static final String MAX_RESPONSE_SIZE = "max_response_kb";
+    public static final String POOL_WATERMARKS = "pool_watermarks";
 
-    private static final int RESPONSE_CERT_ARRAY_INDEX = 0;
-    private static final int RESPONSE_ARRAY_SIZE = 1;
-
-    private static final int SHARED_CERTIFICATES_INDEX = 0;
-    private static final int UNIQUE_CERTIFICATES_INDEX = 1;
     private static final int CERT_ARRAY_ENTRIES = 2;
-
-    private static final int EEK_AND_CURVE_INDEX = 0;
-    private static final int CHALLENGE_INDEX = 1;
-    private static final int CONFIG_INDEX = 2;
+    private static final int WATERMARK_ENTRIES = 2;
+    private static final long OUT_OF_BOUNDS = -1;
 
     private static final int CURVE_AND_EEK_CHAIN_LENGTH = 2;
-    private static final int CURVE_INDEX = 0;
-    private static final int EEK_CERT_CHAIN_INDEX = 1;
 
     private static final int EEK_ARRAY_ENTRIES_NO_CONFIG = 2;
     private static final int EEK_ARRAY_ENTRIES_WITH_CONFIG = 3;
     private static final String TAG = "RemoteProvisioningService";
-    private static final byte[] EMPTY_MAP = new byte[] {(byte) 0xA0};
+
+    private static final int CSR_ENTRIES = 4;
+    private static final int DEVICE_INFO_ENTRIES = 2;
+    private static final byte[] FINGERPRINT_KEY = "fingerprint".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ID_KEY = "id".getBytes(StandardCharsets.UTF_8);
+    private static final int PROVISIONING_INFO_ENTRIES = 2;
+
+    private static final Object sProvisioningInfoLock = new Object();
+    private static byte[] sProvisioningInfo;
 
     /**
      * Parses the signed certificate chains returned by the server. In order to reduce data use over
@@ -80,151 +76,338 @@ public class CborUtils {
      * @return A List object where each byte[] entry is an entire DER-encoded certificate chain.
      */
     public static List<byte[]> parseSignedCertificates(byte[] serverResp) {
+        return parseSignedCertificateChains(serverResp);
+    }
+
+    /**
+     * Parses the signed certificate chains returned by the server in a single pass over the
+     * response, without decoding it into a DataItem tree. No certificate bytes are copied; the
+     * returned view records where each unique chain and the shared certificates live in
+     * {@code serverResp}, and only assembles a complete chain when it is asked for.
+     *
+     * @param serverResp The CBOR blob received from the server which contains all signed
+     *                      certificate chains. It must not be modified while the result is in use.
+     *
+     * @return a view over the DER-encoded certificate chains, or null if the response is malformed.
+     */
+    public static SignedCertificateChains parseSignedCertificateChains(byte[] serverResp) {
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(serverResp);
-            List<DataItem> dataItems = new CborDecoder(bais).decode();
-            if (dataItems.size() != RESPONSE_ARRAY_SIZE
-                    || !checkType(dataItems.get(RESPONSE_CERT_ARRAY_INDEX),
-                                  MajorType.ARRAY, "CborResponse")) {
-                Log.e(TAG, "Improper formatting of CBOR response. Expected size 1. Actual: "
-                            + dataItems.size());
+            CborReader reader = new CborReader(serverResp);
+            if (!checkType(reader, MajorType.ARRAY, "CborResponse")) {
                 return null;
             }
-            dataItems = ((Array) dataItems.get(RESPONSE_CERT_ARRAY_INDEX)).getDataItems();
-            if (dataItems.size() != CERT_ARRAY_ENTRIES) {
+            int entries = reader.readArrayHeader();
+            if (entries != CERT_ARRAY_ENTRIES) {
                 Log.e(TAG, "Incorrect number of certificate array entries. Expected: 2. Actual: "
-                            + dataItems.size());
+                            + entries);
+                return null;
+            }
+            if (!checkType(reader, MajorType.BYTE_STRING, "SharedCertificates")) {
                 return null;
             }
-            if (!checkType(dataItems.get(SHARED_CERTIFICATES_INDEX),
-                           MajorType.BYTE_STRING, "SharedCertificates")
-                    || !checkType(dataItems.get(UNIQUE_CERTIFICATES_INDEX),
-                                  MajorType.ARRAY, "UniqueCertificates")) {
+            int sharedLength = reader.readByteStringHeader();
+            int sharedOffset = reader.getPosition();
+            reader.skip(sharedLength);
+            if (!checkType(reader, MajorType.ARRAY, "UniqueCertificates")) {
                 return null;
             }
-            byte[] sharedCertificates =
-                    ((ByteString) dataItems.get(SHARED_CERTIFICATES_INDEX)).getBytes();
-            Array uniqueCertificates = (Array) dataItems.get(UNIQUE_CERTIFICATES_INDEX);
-            List<byte[]> uniqueCertificateChains = new ArrayList<byte[]>();
-            for (DataItem entry : uniqueCertificates.getDataItems()) {
-                if (!checkType(entry, MajorType.BYTE_STRING, "UniqueCertificate")) {
+            int numChains = reader.readArrayHeader();
+            int[] uniqueOffsets = new int[numChains];
+            int[] uniqueLengths = new int[numChains];
+            for (int i = 0; i < numChains; i++) {
+                if (!checkType(reader, MajorType.BYTE_STRING, "UniqueCertificate")) {
                     return null;
                 }
-                ByteArrayOutputStream concat = new ByteArrayOutputStream();
-                // DER encoding specifies certificate chains ordered from leaf to root.
-                concat.write(((ByteString) entry).getBytes());
-                concat.write(sharedCertificates);
-                uniqueCertificateChains.add(concat.toByteArray());
+                uniqueLengths[i] = reader.readByteStringHeader();
+                uniqueOffsets[i] = reader.getPosition();
+                reader.skip(uniqueLengths[i]);
+            }
+            if (reader.hasRemaining()) {
+                Log.e(TAG, "Improper formatting of CBOR response. Unexpected data after offset "
+                            + reader.getPosition());
+                return null;
             }
-            return uniqueCertificateChains;
+            return new SignedCertificateChains(serverResp, sharedOffset, sharedLength,
+                                               uniqueOffsets, uniqueLengths);
         } catch (CborException e) {
             Log.e(TAG, "CBOR decoding failed.", e);
-        } catch (IOException e) {
-            Log.e(TAG, "Writing bytes failed.", e);
         }
         return null;
     }
 
-    private static boolean checkType(DataItem item, MajorType majorType, String field) {
-        if (item.getMajorType() != majorType) {
+    private static boolean checkType(CborReader reader, MajorType majorType, String field)
+            throws CborException {
+        MajorType actual = reader.peekMajorType();
+        if (actual != majorType) {
             Log.e(TAG, "Incorrect CBOR type for field: " + field + ". Expected " + majorType.name()
-                        + ". Actual: " + item.getMajorType().name());
+                        + ". Actual: " + actual.name());
             return false;
         }
         return true;
     }
 
-    private static boolean parseDeviceConfig(GeekResponse resp, DataItem deviceConfig) {
-        if (!checkType(deviceConfig, MajorType.MAP, "DeviceConfig")) {
+    private static boolean parseDeviceConfig(GeekResponse resp, CborReader reader)
+            throws CborException {
+        if (!checkType(reader, MajorType.MAP, "DeviceConfig")) {
             return false;
         }
-        Map deviceConfiguration = (Map) deviceConfig;
-        DataItem extraKeys =
-                deviceConfiguration.get(new UnicodeString(EXTRA_KEYS));
-        DataItem timeToRefreshHours =
-                deviceConfiguration.get(new UnicodeString(TIME_TO_REFRESH));
-        DataItem newUrl =
-                deviceConfiguration.get(new UnicodeString(PROVISIONING_URL));
-        if (extraKeys != null) {
-            if (!checkType(extraKeys, MajorType.UNSIGNED_INTEGER, "ExtraKeys")) {
-                return false;
+        int entries = reader.readMapHeader();
+        for (int i = 0; i < entries; i++) {
+            if (reader.peekMajorType() != MajorType.UNICODE_STRING) {
+                // Not a key this app knows about, skip both the key and the value.
+                reader.skipItem();
+                reader.skipItem();
+                continue;
+            }
+            switch (reader.readUnicodeString()) {
+                case EXTRA_KEYS:
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "ExtraKeys")) {
+                        return false;
+                    }
+                    resp.numExtraAttestationKeys = (int) reader.readUnsignedInteger();
+                    break;
+                case TIME_TO_REFRESH:
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "TimeToRefresh")) {
+                        return false;
+                    }
+                    resp.timeToRefresh = Duration.ofHours((int) reader.readUnsignedInteger());
+                    break;
+                case PROVISIONING_URL:
+                    if (!checkType(reader, MajorType.UNICODE_STRING, "ProvisioningURL")) {
+                        return false;
+                    }
+                    resp.provisioningUrl = reader.readUnicodeString();
+                    break;
+                case CSR_BATCH_SIZE: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "CsrBatchSize")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, CSR_BATCH_SIZE,
+                            SettingsManager.CSR_BATCH_SIZE_MIN, SettingsManager.CSR_BATCH_SIZE_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.csrBatchSize = (int) value;
+                    }
+                    break;
+                }
+                case KEY_GENERATION_PAUSE: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "KeyGenerationPause")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, KEY_GENERATION_PAUSE,
+                            SettingsManager.KEY_GENERATION_PAUSE_MS_MIN,
+                            SettingsManager.KEY_GENERATION_PAUSE_MS_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.keyGenerationPause = Duration.ofMillis(value);
+                    }
+                    break;
+                }
+                case SERVER_TIMEOUT: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "ServerTimeout")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, SERVER_TIMEOUT,
+                            SettingsManager.SERVER_TIMEOUT_MS_MIN,
+                            SettingsManager.SERVER_TIMEOUT_MS_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.serverTimeout = Duration.ofMillis(value);
+                    }
+                    break;
+                }
+                case SCHEDULER_PERIOD: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "SchedulerPeriod")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, SCHEDULER_PERIOD,
+                            SettingsManager.SCHEDULER_PERIOD_HOURS_MIN,
+                            SettingsManager.SCHEDULER_PERIOD_HOURS_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.schedulerPeriod = Duration.ofHours(value);
+                    }
+                    break;
+                }
+                case SCHEDULE_SPREAD: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "ScheduleSpread")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, SCHEDULE_SPREAD,
+                            SettingsManager.SCHEDULE_SPREAD_MINUTES_MIN,
+                            SettingsManager.SCHEDULE_SPREAD_MINUTES_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.scheduleSpread = Duration.ofMinutes(value);
+                    }
+                    break;
+                }
+                case DEMAND_CONFIDENCE: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "DemandConfidence")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, DEMAND_CONFIDENCE,
+                            SettingsManager.DEMAND_CONFIDENCE_PERCENT_MIN,
+                            SettingsManager.DEMAND_CONFIDENCE_PERCENT_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.demandConfidence = (int) value;
+                    }
+                    break;
+                }
+                case MAX_RESPONSE_SIZE: {
+                    if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "MaxResponseSize")) {
+                        return false;
+                    }
+                    long value = readBoundedUnsignedInteger(reader, MAX_RESPONSE_SIZE,
+                            SettingsManager.MAX_RESPONSE_KB_MIN,
+                            SettingsManager.MAX_RESPONSE_KB_MAX);
+                    if (value != OUT_OF_BOUNDS) {
+                        resp.maxResponseSize = (int) value;
+                    }
+                    break;
+                }
+                case POOL_WATERMARKS:
+                    if (!parsePoolWatermarks(resp, reader)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    reader.skipItem();
+                    break;
             }
-            resp.numExtraAttestationKeys = ((UnsignedInteger) extraKeys).getValue().intValue();
         }
-        if (timeToRefreshHours != null) {
-            if (!checkType(timeToRefreshHours, MajorType.UNSIGNED_INTEGER, "TimeToRefresh")) {
+        return true;
+    }
+
+    /**
+     * Parses the map from security level to its [low, high] pool watermarks. A pair which is out
+     * of bounds, or whose low watermark is above its high one, is logged and ignored like any other
+     * bad tuning value.
+     */
+    private static boolean parsePoolWatermarks(GeekResponse resp, CborReader reader)
+            throws CborException {
+        if (!checkType(reader, MajorType.MAP, "PoolWatermarks")) {
+            return false;
+        }
+        int entries = reader.readMapHeader();
+        for (int i = 0; i < entries; i++) {
+            if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "PoolWatermarksSecLevel")) {
                 return false;
             }
-            resp.timeToRefresh =
-                    Duration.ofHours(((UnsignedInteger) timeToRefreshHours).getValue().intValue());
-        }
-        if (newUrl != null) {
-            if (!checkType(newUrl, MajorType.UNICODE_STRING, "ProvisioningURL")) {
+            int secLevel = (int) reader.readUnsignedInteger();
+            if (!checkType(reader, MajorType.ARRAY, "PoolWatermarksPair")) {
+                return false;
+            }
+            int pairEntries = reader.readArrayHeader();
+            if (pairEntries != WATERMARK_ENTRIES) {
+                Log.e(TAG, "Wrong size. Expected: " + WATERMARK_ENTRIES + ". Actual: "
+                           + pairEntries);
+                return false;
+            }
+            if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "LowWatermark")) {
+                return false;
+            }
+            long low = readBoundedUnsignedInteger(reader, POOL_WATERMARKS, 1,
+                    SettingsManager.EXTRA_SIGNED_KEYS_MAX);
+            if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "HighWatermark")) {
                 return false;
             }
-            resp.provisioningUrl = ((UnicodeString) newUrl).getString();
+            long high = readBoundedUnsignedInteger(reader, POOL_WATERMARKS, 1,
+                    SettingsManager.EXTRA_SIGNED_KEYS_MAX);
+            if (low == OUT_OF_BOUNDS || high == OUT_OF_BOUNDS) {
+                continue;
+            }
+            if (low > high) {
+                Log.w(TAG, "Ignoring " + POOL_WATERMARKS + " for security level " + secLevel
+                        + ", low watermark " + low + " is above high watermark " + high);
+                continue;
+            }
+            resp.poolWatermarks.put(secLevel, new int[] {(int) low, (int) high});
         }
         return true;
     }
 
+    /**
+     * Reads an unsigned integer config value. Values outside of [min, max] are logged and ignored
+     * rather than failing the whole response, so that a bad push of one tuning value can't
+     * prevent the device from provisioning.
+     *
+     * @return the value, or OUT_OF_BOUNDS if it should be ignored.
+     */
+    private static long readBoundedUnsignedInteger(CborReader reader, String key, long min,
+                                                   long max) throws CborException {
+        long value = reader.readUnsignedInteger();
+        if (value < min || value > max) {
+            Log.w(TAG, "Ignoring " + key + " = " + value + ", outside of [" + min + ", " + max
+                    + "]");
+            return OUT_OF_BOUNDS;
+        }
+        return value;
+    }
+
     /**
      * Parses the Google Endpoint Encryption Key response provided by the server which contains a
      * Google signed EEK and a challenge for use by the underlying IRemotelyProvisionedComponent HAL
+     *
+     * The response is walked once without building a DataItem tree. The EEK chain for each curve
+     * is only recorded by its location in {@code serverResp}, which must not be modified while the
+     * returned GeekResponse is in use.
      */
     public static GeekResponse parseGeekResponse(byte[] serverResp) {
         try {
             GeekResponse resp = new GeekResponse();
-            ByteArrayInputStream bais = new ByteArrayInputStream(serverResp);
-            List<DataItem> dataItems = new CborDecoder(bais).decode();
-            if (dataItems.size() != RESPONSE_ARRAY_SIZE
-                    || !checkType(dataItems.get(RESPONSE_CERT_ARRAY_INDEX),
-                                  MajorType.ARRAY, "CborResponse")) {
-                Log.e(TAG, "Improper formatting of CBOR response. Expected size 1. Actual: "
-                            + dataItems.size());
+            CborReader reader = new CborReader(serverResp);
+            if (!checkType(reader, MajorType.ARRAY, "CborResponse")) {
                 return null;
             }
-            List<DataItem> respItems =
-                    ((Array) dataItems.get(RESPONSE_CERT_ARRAY_INDEX)).getDataItems();
-            if (respItems.size() != EEK_ARRAY_ENTRIES_NO_CONFIG
-                    && respItems.size() != EEK_ARRAY_ENTRIES_WITH_CONFIG) {
+            int respEntries = reader.readArrayHeader();
+            if (respEntries != EEK_ARRAY_ENTRIES_NO_CONFIG
+                    && respEntries != EEK_ARRAY_ENTRIES_WITH_CONFIG) {
                 Log.e(TAG, "Incorrect number of certificate array entries. Expected: "
                             + EEK_ARRAY_ENTRIES_NO_CONFIG + " or " + EEK_ARRAY_ENTRIES_WITH_CONFIG
-                            + ". Actual: " + respItems.size());
+                            + ". Actual: " + respEntries);
                 return null;
             }
-            if (!checkType(respItems.get(EEK_AND_CURVE_INDEX), MajorType.ARRAY, "EekAndCurveArr")) {
+            if (!checkType(reader, MajorType.ARRAY, "EekAndCurveArr")) {
                 return null;
             }
-            List<DataItem> curveAndEekChains =
-                    ((Array) respItems.get(EEK_AND_CURVE_INDEX)).getDataItems();
-            for (int i = 0; i < curveAndEekChains.size(); i++) {
-                if (!checkType(curveAndEekChains.get(i), MajorType.ARRAY, "EekAndCurve")) {
+            int numCurves = reader.readArrayHeader();
+            for (int i = 0; i < numCurves; i++) {
+                if (!checkType(reader, MajorType.ARRAY, "EekAndCurve")) {
                     return null;
                 }
-                List<DataItem> curveAndEekChain =
-                        ((Array) curveAndEekChains.get(i)).getDataItems();
-                if (curveAndEekChain.size() != CURVE_AND_EEK_CHAIN_LENGTH) {
+                int curveAndEekChainLength = reader.readArrayHeader();
+                if (curveAndEekChainLength != CURVE_AND_EEK_CHAIN_LENGTH) {
                     Log.e(TAG, "Wrong size. Expected: " + CURVE_AND_EEK_CHAIN_LENGTH + ". Actual: "
-                               + curveAndEekChain.size());
+                               + curveAndEekChainLength);
                     return null;
                 }
-                if (!checkType(curveAndEekChain.get(CURVE_INDEX),
-                               MajorType.UNSIGNED_INTEGER, "Curve")
-                        || !checkType(curveAndEekChain.get(EEK_CERT_CHAIN_INDEX),
-                                                           MajorType.ARRAY, "EekCertChain")) {
+                if (!checkType(reader, MajorType.UNSIGNED_INTEGER, "Curve")) {
                     return null;
                 }
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                new CborEncoder(baos).encode(curveAndEekChain.get(EEK_CERT_CHAIN_INDEX));
-                UnsignedInteger curve = (UnsignedInteger) curveAndEekChain.get(CURVE_INDEX);
-                resp.addGeek(curve.getValue().intValue(), baos.toByteArray());
+                long curve = reader.readUnsignedInteger();
+                if (!checkType(reader, MajorType.ARRAY, "EekCertChain")) {
+                    return null;
+                }
+                int eekChainOffset = reader.getPosition();
+                reader.skipItem();
+                if (curve > GeekResponse.MAX_CURVE) {
+                    Log.w(TAG, "Ignoring EEK chain for unknown curve: " + curve);
+                    continue;
+                }
+                resp.addGeek((int) curve, serverResp, eekChainOffset,
+                             reader.getPosition() - eekChainOffset);
             }
-            if (!checkType(respItems.get(CHALLENGE_INDEX), MajorType.BYTE_STRING, "Challenge")) {
+            if (!checkType(reader, MajorType.BYTE_STRING, "Challenge")) {
                 return null;
             }
-            resp.setChallenge(((ByteString) respItems.get(CHALLENGE_INDEX)).getBytes());
-            if (respItems.size() == EEK_ARRAY_ENTRIES_WITH_CONFIG
-                    && !parseDeviceConfig(resp, respItems.get(CONFIG_INDEX))) {
+            int challengeLength = reader.readByteStringHeader();
+            int challengeOffset = reader.getPosition();
+            reader.skip(challengeLength);
+            resp.setChallenge(Arrays.copyOfRange(serverResp, challengeOffset,
+                                                 challengeOffset + challengeLength));
+            if (respEntries == EEK_ARRAY_ENTRIES_WITH_CONFIG
+                    && !parseDeviceConfig(resp, reader)) {
+                return null;
+            }
+            if (reader.hasRemaining()) {
+                Log.e(TAG, "Improper formatting of CBOR response. Unexpected data after offset "
+                            + reader.getPosition());
                 return null;
             }
             return resp;
@@ -239,25 +422,49 @@ public class CborUtils {
      * device configuration values to return. In general, this boils down to if remote provisioning
      * is turned on at all or not.
      *
-     * @return the CBOR encoded provisioning information relevant to the server.
+     * The values in the bundle are effectively constant for the lifetime of the process, so the
+     * encoded map is cached until {@link SettingsManager} drops it through
+     * {@link #invalidateProvisioningInfo}, which it does whenever it writes a new ID.
+     *
+     * @return the CBOR encoded provisioning information relevant to the server. The array is
+     *         shared between callers and must not be modified.
      */
     public static byte[] buildProvisioningInfo(Context context) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            new CborEncoder(baos).encode(new CborBuilder()
-                    .addMap()
-                        .put("fingerprint", Build.FINGERPRINT)
-                        .put(new UnicodeString("id"),
-                             new UnsignedInteger(SettingsManager.getId(context)))
-                        .end()
-                    .build());
-            return baos.toByteArray();
-        } catch (CborException e) {
-            Log.e(TAG, "CBOR serialization failed.", e);
-            return EMPTY_MAP;
+        synchronized (sProvisioningInfoLock) {
+            if (sProvisioningInfo == null) {
+                sProvisioningInfo =
+                        encodeProvisioningInfo(Build.FINGERPRINT, SettingsManager.getId(context));
+            }
+            return sProvisioningInfo;
+        }
+    }
+
+    /**
+     * Drops the cached provisioning information, so that the next call to
+     * {@link #buildProvisioningInfo} encodes it afresh.
+     */
+    public static void invalidateProvisioningInfo() {
+        synchronized (sProvisioningInfoLock) {
+            sProvisioningInfo = null;
         }
     }
 
+    private static byte[] encodeProvisioningInfo(String fingerprint, int id) {
+        byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+        int size = CborWriter.headerSize(PROVISIONING_INFO_ENTRIES)
+                + CborWriter.stringSize(ID_KEY.length) + CborWriter.headerSize(id)
+                + CborWriter.stringSize(FINGERPRINT_KEY.length)
+                + CborWriter.stringSize(fingerprintBytes.length);
+        // Keep the canonical key order that CborEncoder used to produce: shorter keys first.
+        return new CborWriter(size)
+                .writeMapHeader(PROVISIONING_INFO_ENTRIES)
+                .writeUnicodeString(ID_KEY)
+                .writeUnsignedInteger(id)
+                .writeUnicodeString(FINGERPRINT_KEY)
+                .writeUnicodeString(fingerprintBytes)
+                .toByteArray();
+    }
+
     /**
      * Takes the various fields fetched from the server and the remote provisioning service and
      * formats them in the CBOR blob the server is expecting as defined by the
@@ -265,58 +472,59 @@ public class CborUtils {
      */
     public static byte[] buildCertificateRequest(byte[] deviceInfo, byte[] challenge,
                                                  byte[] protectedData, byte[] macedKeysToSign) {
-        // This CBOR library doesn't support adding already serialized CBOR structures into a
-        // CBOR builder. Because of this, we have to first deserialize the provided parameters
-        // back into the library's CBOR object types, and then reserialize them into the
-        // desired structure.
+        // The blobs produced by KeyMint are spliced into the request exactly as they were
+        // serialized. They are only scanned to make sure that each one holds a single, well
+        // formed item of the expected type.
         try {
-            // Deserialize the protectedData blob
-            ByteArrayInputStream bais = new ByteArrayInputStream(protectedData);
-            List<DataItem> dataItems = new CborDecoder(bais).decode();
-            if (dataItems.size() != 1
-                    || !checkType(dataItems.get(0), MajorType.ARRAY, "ProtectedData")) {
-                return null;
-            }
-            Array protectedDataArray = (Array) dataItems.get(0);
-
-            // Deserialize macedKeysToSign
-            bais = new ByteArrayInputStream(macedKeysToSign);
-            dataItems = new CborDecoder(bais).decode();
-            if (dataItems.size() != 1
-                    || !checkType(dataItems.get(0), MajorType.ARRAY, "MacedKeysToSign")) {
+            if (!checkEncodedItem(protectedData, MajorType.ARRAY, "ProtectedData")
+                    || !checkEncodedItem(macedKeysToSign, MajorType.ARRAY, "MacedKeysToSign")
+                    || !checkEncodedItem(deviceInfo, MajorType.MAP, "DeviceInfo")) {
                 return null;
             }
-            Array macedKeysToSignArray = (Array) dataItems.get(0);
-
-            // Deserialize deviceInfo
-            bais = new ByteArrayInputStream(deviceInfo);
-            dataItems = new CborDecoder(bais).decode();
-            if (dataItems.size() != 1
-                    || !checkType(dataItems.get(0), MajorType.MAP, "DeviceInfo")) {
-                return null;
-            }
-            Map verifiedDeviceInfoMap = (Map) dataItems.get(0);
-            Map unverifiedDeviceInfoMap = new Map();
-            unverifiedDeviceInfoMap.put(new UnicodeString("fingerprint"),
-                                        new UnicodeString(Build.FINGERPRINT));
-
-            // Serialize the actual CertificateSigningRequest structure
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            new CborEncoder(baos).encode(new CborBuilder()
-                    .addArray()
-                        .addArray()
-                            .add(verifiedDeviceInfoMap)
-                            .add(unverifiedDeviceInfoMap)
-                            .end()
-                        .add(challenge)
-                        .add(protectedDataArray)
-                        .add(macedKeysToSignArray)
-                        .end()
-                    .build());
-            return baos.toByteArray();
         } catch (CborException e) {
             Log.e(TAG, "Malformed CBOR", e);
             return null;
         }
+        byte[] fingerprint = Build.FINGERPRINT.getBytes(StandardCharsets.UTF_8);
+        int unverifiedDeviceInfoSize = CborWriter.headerSize(1)
+                + CborWriter.stringSize(FINGERPRINT_KEY.length)
+                + CborWriter.stringSize(fingerprint.length);
+        int size = CborWriter.headerSize(CSR_ENTRIES)
+                + CborWriter.headerSize(DEVICE_INFO_ENTRIES)
+                + deviceInfo.length
+                + unverifiedDeviceInfoSize
+                + CborWriter.stringSize(challenge.length)
+                + protectedData.length
+                + macedKeysToSign.length;
+
+        // Serialize the actual CertificateSigningRequest structure
+        return new CborWriter(size)
+                .writeArrayHeader(CSR_ENTRIES)
+                    .writeArrayHeader(DEVICE_INFO_ENTRIES)
+                        .writeRaw(deviceInfo)            // VerifiedDeviceInfo
+                        .writeMapHeader(1)               // UnverifiedDeviceInfo
+                            .writeUnicodeString(FINGERPRINT_KEY)
+                            .writeUnicodeString(fingerprint)
+                    .writeByteString(challenge)
+                    .writeRaw(protectedData)
+                    .writeRaw(macedKeysToSign)
+                .toByteArray();
+    }
+
+    /**
+     * Checks that {@code encoded} consists of exactly one well formed CBOR item of the given type.
+     */
+    private static boolean checkEncodedItem(byte[] encoded, MajorType majorType, String field)
+            throws CborException {
+        CborReader reader = new CborReader(encoded);
+        if (!checkType(reader, majorType, field)) {
+            return false;
+        }
+        reader.skipItem();
+        if (reader.hasRemaining()) {
+            Log.e(TAG, "Unexpected data following the encoded " + field);
+            return false;
+        }
+        return true;
     }
 }
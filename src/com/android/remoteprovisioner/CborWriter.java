@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import co.nstant.in.cbor.model.MajorType;
+
+/**
+ * A minimal CBOR writer which emits definite length headers and scalar items into a buffer that is
+ * allocated once, up front. Its main purpose is to splice already serialized CBOR, such as the
+ * blobs produced by KeyMint, into a larger structure byte-for-byte, which CborEncoder cannot do
+ * without first decoding those blobs into DataItems.
+ *
+ * The caller is expected to compute the exact encoded size beforehand using the static size
+ * helpers. {@link #toByteArray} fails if the buffer was not filled exactly, which catches any
+ * mismatch between the size computation and what was actually written.
+ */
+public class CborWriter {
+    private static final int MAX_IMMEDIATE_ARGUMENT = 23;
+    private static final int ONE_BYTE_ARGUMENT = 24;
+    private static final int TWO_BYTE_ARGUMENT = 25;
+    private static final int FOUR_BYTE_ARGUMENT = 26;
+    private static final int EIGHT_BYTE_ARGUMENT = 27;
+
+    private final byte[] mBuffer;
+    private int mPosition;
+
+    /**
+     * Creates a writer whose output will be exactly {@code size} bytes long.
+     */
+    public CborWriter(int size) {
+        mBuffer = new byte[size];
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a header carrying {@code argument}.
+     */
+    public static int headerSize(long argument) {
+        if (argument <= MAX_IMMEDIATE_ARGUMENT) {
+            return 1;
+        } else if (argument <= 0xffL) {
+            return 2;
+        } else if (argument <= 0xffffL) {
+            return 3;
+        } else if (argument <= 0xffffffffL) {
+            return 5;
+        }
+        return 9;
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a byte or text string of {@code length} bytes.
+     */
+    public static int stringSize(int length) {
+        return headerSize(length) + length;
+    }
+
+    /**
+     * Writes the header of an array holding {@code count} items.
+     */
+    public CborWriter writeArrayHeader(int count) {
+        writeHeader(MajorType.ARRAY, count);
+        return this;
+    }
+
+    /**
+     * Writes the header of a map holding {@code count} key/value pairs.
+     */
+    public CborWriter writeMapHeader(int count) {
+        writeHeader(MajorType.MAP, count);
+        return this;
+    }
+
+    /**
+     * Writes an unsigned integer.
+     */
+    public CborWriter writeUnsignedInteger(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        writeHeader(MajorType.UNSIGNED_INTEGER, value);
+        return this;
+    }
+
+    /**
+     * Writes {@code data} as a byte string.
+     */
+    public CborWriter writeByteString(byte[] data) {
+        writeHeader(MajorType.BYTE_STRING, data.length);
+        return writeRaw(data);
+    }
+
+    /**
+     * Writes the header of a byte string of {@code length} bytes. The content must be written
+     * next with {@link #writeRaw}.
+     */
+    public CborWriter writeByteStringHeader(int length) {
+        writeHeader(MajorType.BYTE_STRING, length);
+        return this;
+    }
+
+    /**
+     * Writes a text string from its UTF-8 encoded bytes.
+     */
+    public CborWriter writeUnicodeString(byte[] utf8) {
+        writeHeader(MajorType.UNICODE_STRING, utf8.length);
+        return writeRaw(utf8);
+    }
+
+    /**
+     * Copies already encoded CBOR into the output without interpreting it.
+     */
+    public CborWriter writeRaw(byte[] encoded) {
+        return writeRaw(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Copies {@code length} bytes of already encoded CBOR, starting at {@code offset}, into the
+     * output without interpreting them.
+     */
+    public CborWriter writeRaw(byte[] encoded, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(encoded, offset, mBuffer, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    /**
+     * Returns the encoded output. This is the writer's own buffer, not a copy.
+     *
+     * @throws IllegalStateException if fewer bytes were written than the writer was sized for.
+     */
+    public byte[] toByteArray() {
+        if (mPosition != mBuffer.length) {
+            throw new IllegalStateException("Expected " + mBuffer.length + " bytes of CBOR, but "
+                    + mPosition + " were written");
+        }
+        return mBuffer;
+    }
+
+    private void writeHeader(MajorType type, long argument) {
+        int size = headerSize(argument);
+        ensureCapacity(size);
+        int initialByte = type.getValue() << 5;
+        switch (size) {
+            case 1:
+                mBuffer[mPosition++] = (byte) (initialByte | argument);
+                return;
+            case 2:
+                mBuffer[mPosition++] = (byte) (initialByte | ONE_BYTE_ARGUMENT);
+                break;
+            case 3:
+                mBuffer[mPosition++] = (byte) (initialByte | TWO_BYTE_ARGUMENT);
+                break;
+            case 5:
+                mBuffer[mPosition++] = (byte) (initialByte | FOUR_BYTE_ARGUMENT);
+                break;
+            default:
+                mBuffer[mPosition++] = (byte) (initialByte | EIGHT_BYTE_ARGUMENT);
+                break;
+        }
+        for (int shift = (size - 2) * 8; shift >= 0; shift -= 8) {
+            mBuffer[mPosition++] = (byte) (argument >>> shift);
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (length > mBuffer.length - mPosition) {
+            throw new IllegalStateException("Writing " + length + " bytes overflows the "
+                    + mBuffer.length + " byte buffer");
+        }
+    }
+}
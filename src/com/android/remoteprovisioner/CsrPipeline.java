@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import android.content.Context;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Provisions keys for one security level in batches, so as not to overwhelm the backend with very
+ * large CSR requests.
+ *
+ * The batches are pipelined: while the certificate request for one batch is out at the server and
+ * its certificates are being stored on a second thread, the keys for the next batch are generated
+ * on the calling one. Keystore builds a CSR out of whichever keys are unsigned when it is asked, so
+ * the next CSR is only generated once the previous batch has been stored, which bounds the
+ * pipeline to one batch in flight.
+ */
+public class CsrPipeline {
+    private static final String TAG = "RemoteProvisioningService";
+
+    /**
+     * The steps that provision one batch, backed by keystore and the server.
+     */
+    public interface Batch {
+        /**
+         * Generates {@code numKeys} new unsigned keys.
+         */
+        void generateKeys(int numKeys) throws InterruptedException, RemoteException;
+
+        /**
+         * @return the encoded certificate request for {@code numKeys} of the unsigned keys, or
+         *         null on failure.
+         */
+        byte[] generateCertificateRequest(int numKeys) throws RemoteException;
+
+        /**
+         * Sends {@code certificateRequest} to the server and stores the certificate chains that
+         * come back. This is called on the submission executor.
+         *
+         * @return the number of keys provisioned.
+         */
+        int submitCertificateRequest(byte[] certificateRequest);
+    }
+
+    /**
+     * Provisions {@code keysToCertify} keys in batches of at most {@code csrBatchSize}, of which
+     * {@code unsignedKeys} are already in the pool waiting to be signed.
+     *
+     * @return true if every batch was provisioned in full. A batch that wasn't has already been
+     *         recorded in RetryPolicy, by whichever step knew why it failed.
+     */
+    public static boolean provision(Context context, Batch batch, ExecutorService submitExecutor,
+            int keysToCertify, int csrBatchSize, int unsignedKeys)
+            throws InterruptedException, RemoteException {
+        Future<Integer> inFlight = null;
+        int inFlightSize = 0;
+        boolean complete = true;
+        while (keysToCertify > 0) {
+            int batchSize = min(keysToCertify, csrBatchSize);
+            // The keys of the batch in flight are still unsigned until it is stored, but they are
+            // spoken for, so generate this batch's keys as though they were already gone.
+            int keysToGenerate = max(0, batchSize - (unsignedKeys - inFlightSize));
+            batch.generateKeys(keysToGenerate);
+            unsignedKeys += keysToGenerate;
+            // Only the keys whose certificates were stored stop being unsigned. The rest of a
+            // batch that failed are still there for the next batch to pick up.
+            int provisioned = awaitSubmission(context, inFlight);
+            unsignedKeys -= provisioned;
+            complete &= provisioned >= inFlightSize;
+            byte[] certificateRequest = batch.generateCertificateRequest(batchSize);
+            if (certificateRequest != null) {
+                inFlight = submitExecutor.submit(
+                        () -> batch.submitCertificateRequest(certificateRequest));
+                inFlightSize = batchSize;
+            } else {
+                RetryPolicy.recordFailure(context, RetryPolicy.FAILURE_BINDER);
+                inFlight = null;
+                inFlightSize = 0;
+                complete = false;
+            }
+            keysToCertify -= batchSize;
+        }
+        int provisioned = awaitSubmission(context, inFlight);
+        return complete && provisioned >= inFlightSize;
+    }
+
+    /**
+     * Waits for {@code submission} to finish, if there is one.
+     *
+     * @return the number of keys it provisioned.
+     */
+    private static int awaitSubmission(Context context, Future<Integer> submission)
+            throws InterruptedException {
+        if (submission == null) {
+            return 0;
+        }
+        try {
+            return submission.get();
+        } catch (ExecutionException e) {
+            RetryPolicy.recordFailure(context, RetryPolicy.FAILURE_BINDER);
+            Log.e(TAG, "Failed to submit certificate request.", e.getCause());
+            return 0;
+        }
+    }
+}
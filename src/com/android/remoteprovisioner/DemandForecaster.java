@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import static java.lang.Math.max;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.remoteprovisioning.AttestationPoolStatus;
+
+import java.time.Duration;
+
+/**
+ * Forecasts how many attestation keys each security level will consume, so that the pool can be
+ * sized to the demand of this device rather than to a fixed number of extra keys.
+ *
+ * Consumption is observed in two ways: keystore notifies GenerateRkpKeyService each time it
+ * assigns a key, and each pool status snapshot reveals how many keys were assigned since the last
+ * one, which covers assignments made while the app wasn't running. The number of keys assigned
+ * and the time over which they were observed are both exponentially decayed with a time constant
+ * of {@link #DECAY_TIME}, and their ratio gives the recent consumption rate.
+ *
+ * Assuming keys are assigned as a Poisson process at that rate, the pool is sized to hold enough
+ * unassigned keys to cover the demand over {@link #FORECAST_HORIZON} with the confidence set in
+ * SettingsManager. The horizon is deliberately not the period of the periodic job, which can be
+ * several days: GenerateRkpKeyService refills the pool whenever it drops below its low
+ * watermark, so the pool only has to last until the next refill, not the next run. Until there
+ * are {@link #MIN_OBSERVATION_TIME} of observations, or if the server has turned provisioning
+ * off, the number of extra keys configured by the server is used instead.
+ *
+ * The observations are persisted in SharedPreferences, separately from SettingsManager so that
+ * resetting the settings to their defaults does not lose the device's history.
+ */
+public class DemandForecaster {
+    public static final Duration DECAY_TIME = Duration.ofDays(7);
+    public static final Duration MIN_OBSERVATION_TIME = Duration.ofDays(1);
+    public static final Duration FORECAST_HORIZON = Duration.ofDays(1);
+    public static final int MIN_EXTRA_KEYS = 1;
+    public static final int MAX_EXTRA_KEYS = SettingsManager.EXTRA_SIGNED_KEYS_MAX;
+
+    private static final String KEY_ASSIGNED = "assigned_";
+    private static final String KEY_HOURS = "hours_";
+    private static final String KEY_UPDATED = "updated_";
+    private static final String KEY_IN_USE = "in_use_";
+    private static final String KEY_NOTIFIED = "notified_";
+    private static final String PREFERENCES_NAME = "com.android.remoteprovisioner.demand";
+    private static final long MS_PER_HOUR = Duration.ofHours(1).toMillis();
+
+    /**
+     * Records that keystore assigned a key from the pool of {@code secLevel} at {@code nowMs}.
+     */
+    public static synchronized void recordKeyAssigned(Context context, int secLevel, long nowMs) {
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        SharedPreferences.Editor editor = sharedPref.edit();
+        observe(sharedPref, editor, secLevel, 1 /* assigned */, nowMs);
+        editor.putInt(KEY_NOTIFIED + secLevel, sharedPref.getInt(KEY_NOTIFIED + secLevel, 0) + 1);
+        editor.apply();
+    }
+
+    /**
+     * Records a snapshot of the pool of {@code secLevel} taken at {@code nowMs}. Any increase in
+     * the number of keys in use since the last snapshot that keystore didn't notify the app of is
+     * counted as consumption.
+     */
+    public static synchronized void recordPoolStatus(Context context, int secLevel,
+            AttestationPoolStatus pool, long nowMs) {
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        SharedPreferences.Editor editor = sharedPref.edit();
+        int keysInUse = pool.attested - pool.unassigned;
+        int lastKeysInUse = sharedPref.getInt(KEY_IN_USE + secLevel, -1);
+        int unnotified = 0;
+        if (lastKeysInUse >= 0) {
+            int notified = sharedPref.getInt(KEY_NOTIFIED + secLevel, 0);
+            unnotified = max(0, keysInUse - lastKeysInUse - notified);
+        }
+        observe(sharedPref, editor, secLevel, unnotified, nowMs);
+        editor.putInt(KEY_IN_USE + secLevel, keysInUse);
+        editor.putInt(KEY_NOTIFIED + secLevel, 0);
+        editor.apply();
+    }
+
+    /**
+     * Returns the recent rate at which keys are assigned from the pool of {@code secLevel}, in
+     * keys per hour, or -1 if there have not yet been enough observations to tell.
+     */
+    public static synchronized double getConsumptionRate(Context context, int secLevel) {
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        double hours = sharedPref.getFloat(KEY_HOURS + secLevel, 0);
+        if (hours < MIN_OBSERVATION_TIME.toHours()) {
+            return -1;
+        }
+        return sharedPref.getFloat(KEY_ASSIGNED + secLevel, 0) / hours;
+    }
+
+    /**
+     * Returns how many signed keys should be kept available in the pool of {@code secLevel}, on
+     * top of those already in use.
+     */
+    public static int getExtraSignedKeysAvailable(Context context, int secLevel) {
+        int configured = SettingsManager.getExtraSignedKeysAvailable(context);
+        double rate = getConsumptionRate(context, secLevel);
+        if (configured == 0 || rate < 0) {
+            return configured;
+        }
+        double expectedDemand = rate * FORECAST_HORIZON.toMillis() / MS_PER_HOUR;
+        int keys = poissonQuantile(expectedDemand,
+                SettingsManager.getDemandConfidence(context) / 100.0);
+        return max(MIN_EXTRA_KEYS, keys);
+    }
+
+    /**
+     * Returns the smallest number of keys that covers a demand which is Poisson distributed with
+     * the given {@code mean} with probability at least {@code confidence}, or {@link
+     * #MAX_EXTRA_KEYS} if that isn't enough.
+     */
+    public static int poissonQuantile(double mean, double confidence) {
+        if (mean >= MAX_EXTRA_KEYS) {
+            return MAX_EXTRA_KEYS;
+        }
+        double probability = Math.exp(-mean);
+        double cumulative = probability;
+        int keys = 0;
+        while (cumulative < confidence && keys < MAX_EXTRA_KEYS) {
+            keys++;
+            probability *= mean / keys;
+            cumulative += probability;
+        }
+        return keys;
+    }
+
+    /**
+     * Forgets all observations.
+     */
+    public static synchronized void clear(Context context) {
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        editor.clear();
+        editor.apply();
+    }
+
+    private static void observe(SharedPreferences sharedPref, SharedPreferences.Editor editor,
+            int secLevel, int assigned, long nowMs) {
+        long lastUpdatedMs = sharedPref.getLong(KEY_UPDATED + secLevel, -1);
+        double decayedAssigned = sharedPref.getFloat(KEY_ASSIGNED + secLevel, 0);
+        double decayedHours = sharedPref.getFloat(KEY_HOURS + secLevel, 0);
+        if (lastUpdatedMs >= 0) {
+            // Clocks can go backwards, in which case no time is counted.
+            double elapsedHours = (double) max(0, nowMs - lastUpdatedMs) / MS_PER_HOUR;
+            double decay = Math.exp(-elapsedHours / DECAY_TIME.toHours());
+            decayedAssigned *= decay;
+            decayedHours = decayedHours * decay + elapsedHours;
+        }
+        decayedAssigned += assigned;
+        editor.putFloat(KEY_ASSIGNED + secLevel, (float) decayedAssigned);
+        editor.putFloat(KEY_HOURS + secLevel, (float) decayedHours);
+        editor.putLong(KEY_UPDATED + secLevel, max(nowMs, lastUpdatedMs));
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
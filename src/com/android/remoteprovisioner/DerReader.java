@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import java.security.cert.CertificateParsingException;
+
+/**
+ * A minimal, forward-only DER reader that walks the tag-length-value structure of an encoded
+ * buffer in place, in the same manner as {@link CborReader}. It knows nothing about ASN.1 types
+ * beyond their tags; callers read a header, then either descend into the content of a
+ * constructed value or skip over it.
+ *
+ * Only single byte tags and definite lengths of up to four bytes are supported, which covers any
+ * certificate the provisioning server issues. Every length is checked against the bytes
+ * remaining in the buffer.
+ */
+public class DerReader {
+    public static final int TAG_INTEGER = 0x02;
+    public static final int TAG_BIT_STRING = 0x03;
+    public static final int TAG_OBJECT_IDENTIFIER = 0x06;
+    public static final int TAG_UTC_TIME = 0x17;
+    public static final int TAG_GENERALIZED_TIME = 0x18;
+    public static final int TAG_SEQUENCE = 0x30;
+    public static final int TAG_CONTEXT_SPECIFIC_0 = 0xa0;
+
+    private static final int HIGH_TAG_NUMBER = 0x1f;
+    private static final int LONG_FORM_LENGTH = 0x80;
+    private static final int MAX_LENGTH_BYTES = 4;
+
+    private final byte[] mBuffer;
+    private final int mEnd;
+    private int mPosition;
+
+    /**
+     * Creates a reader over {@code length} bytes of {@code buffer}, starting at {@code offset}.
+     */
+    public DerReader(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffer.length - length) {
+            throw new IndexOutOfBoundsException("Invalid range: " + offset + ", " + length);
+        }
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * Returns the offset in the buffer of the next byte to be read.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Returns {@code true} if there are unread bytes left in the buffer.
+     */
+    public boolean hasRemaining() {
+        return mPosition < mEnd;
+    }
+
+    /**
+     * Returns the tag of the next value without consuming it.
+     */
+    public int peekTag() throws CertificateParsingException {
+        if (mPosition >= mEnd) {
+            throw new CertificateParsingException("Unexpected end of DER data at offset "
+                    + mPosition);
+        }
+        return mBuffer[mPosition] & 0xff;
+    }
+
+    /**
+     * Consumes the tag and length of a value, which must be tagged {@code expectedTag}, and
+     * returns the length of its content. The reader is left positioned at the first byte of the
+     * content, which the caller must either read or {@link #skip}.
+     */
+    public int readHeader(int expectedTag) throws CertificateParsingException {
+        int tag = peekTag();
+        if (tag != expectedTag) {
+            throw new CertificateParsingException("Expected tag " + expectedTag + " at offset "
+                    + mPosition + ". Actual: " + tag);
+        }
+        if ((tag & HIGH_TAG_NUMBER) == HIGH_TAG_NUMBER) {
+            throw new CertificateParsingException("Multi-byte tags are not supported");
+        }
+        mPosition++;
+        int length = readByte();
+        if (length > LONG_FORM_LENGTH) {
+            int lengthBytes = length - LONG_FORM_LENGTH;
+            if (lengthBytes > MAX_LENGTH_BYTES) {
+                throw new CertificateParsingException("Unsupported length of " + lengthBytes
+                        + " bytes at offset " + mPosition);
+            }
+            long longLength = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                longLength = (longLength << 8) | readByte();
+            }
+            if (longLength > Integer.MAX_VALUE) {
+                throw new CertificateParsingException("Length too large: " + longLength);
+            }
+            length = (int) longLength;
+        } else if (length == LONG_FORM_LENGTH) {
+            throw new CertificateParsingException("Indefinite length encoding is not DER");
+        }
+        if (length > mEnd - mPosition) {
+            throw new CertificateParsingException("Declared length " + length
+                    + " exceeds the remaining " + (mEnd - mPosition) + " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * Reads one unsigned byte.
+     */
+    public int readByte() throws CertificateParsingException {
+        if (mPosition >= mEnd) {
+            throw new CertificateParsingException("Unexpected end of DER data at offset "
+                    + mPosition);
+        }
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+    /**
+     * Advances the reader by {@code length} raw bytes.
+     */
+    public void skip(int length) throws CertificateParsingException {
+        if (length < 0 || length > mEnd - mPosition) {
+            throw new CertificateParsingException("Cannot skip " + length + " bytes at offset "
+                    + mPosition);
+        }
+        mPosition += length;
+    }
+
+    /**
+     * Skips over one complete value, which must be tagged {@code expectedTag}.
+     */
+    public void skipValue(int expectedTag) throws CertificateParsingException {
+        skip(readHeader(expectedTag));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.time.Duration;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of when the certificates the app has handed to keystore expire, so that the
+ * periodic job can be scheduled to run when keys are about to enter the expiring_by window rather
+ * than at a fixed period.
+ *
+ * Expiration dates are rounded down to the hour and only the distinct hours are kept, since every
+ * chain in a batch expires at about the same time. Rounding down means the job may run up to an
+ * hour early, but never late. Hours that have passed are dropped, and at most {@link #MAX_ENTRIES}
+ * are kept; if there are more, the latest are forgotten, which only means the job falls back to
+ * the maximum interval once the earlier ones have passed.
+ *
+ * The index also remembers how far ahead the last complete run of the job checked the pool, since
+ * keys expiring before then have already been dealt with. The index is persisted in
+ * SharedPreferences as a comma separated list of hours since the epoch.
+ */
+public class ExpiryIndex {
+    public static final int MAX_ENTRIES = 64;
+
+    private static final long MS_PER_HOUR = Duration.ofHours(1).toMillis();
+    private static final String KEY_CHECKED_UNTIL = "checked_until";
+    private static final String KEY_HOURS = "expiry_hours";
+    private static final String PREFERENCES_NAME = "com.android.remoteprovisioner.expiry";
+    private static final String TAG = "RemoteProvisioningService";
+
+    /**
+     * Records the expiration dates, in milliseconds since the epoch, of {@code count} certificates
+     * that were just handed to keystore.
+     */
+    public static synchronized void recordExpirations(Context context, long[] expirationDates,
+            int count, long nowMs) {
+        TreeSet<Long> hours = readHours(context, nowMs);
+        for (int i = 0; i < count; i++) {
+            hours.add(Math.floorDiv(expirationDates[i], MS_PER_HOUR));
+        }
+        while (hours.size() > MAX_ENTRIES) {
+            hours.pollLast();
+        }
+        writeHours(context, hours);
+    }
+
+    /**
+     * Returns the earliest known expiration date that is after {@code afterMs}, or -1 if none is
+     * known.
+     */
+    public static synchronized long getEarliestExpirationAfter(Context context, long afterMs) {
+        Long hour = readHours(context, afterMs).ceiling(Math.floorDiv(afterMs, MS_PER_HOUR));
+        if (hour == null) {
+            return -1;
+        }
+        return max(afterMs, hour * MS_PER_HOUR);
+    }
+
+    /**
+     * Records that the pool has been checked, and provisioned if need be, for keys expiring up to
+     * {@code checkedUntilMs}.
+     */
+    public static synchronized void setCheckedUntil(Context context, long checkedUntilMs) {
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        editor.putLong(KEY_CHECKED_UNTIL, checkedUntilMs);
+        editor.apply();
+    }
+
+    /**
+     * Returns how long to wait before next checking the pool: until the earliest known key that
+     * has not yet been checked enters the {@code expiringBy} window, but no longer than {@code
+     * maxInterval}. If such a key is already inside the window, the delay is zero.
+     */
+    public static Duration getNextCheckDelay(Context context, long nowMs, Duration expiringBy,
+            Duration maxInterval) {
+        long checkedUntilMs = getSharedPreferences(context).getLong(KEY_CHECKED_UNTIL, 0);
+        long expiration = getEarliestExpirationAfter(context, max(nowMs, checkedUntilMs));
+        if (expiration < 0) {
+            return maxInterval;
+        }
+        return Duration.ofMillis(min(maxInterval.toMillis(),
+                max(0, expiration - expiringBy.toMillis() - nowMs)));
+    }
+
+    /**
+     * Forgets every expiration date, for instance because all keys have been deleted.
+     */
+    public static synchronized void clear(Context context) {
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        editor.clear();
+        editor.apply();
+    }
+
+    private static TreeSet<Long> readHours(Context context, long nowMs) {
+        TreeSet<Long> hours = new TreeSet<>();
+        String encoded = getSharedPreferences(context).getString(KEY_HOURS, "");
+        long currentHour = Math.floorDiv(nowMs, MS_PER_HOUR);
+        for (String hour : encoded.split(",")) {
+            if (hour.isEmpty()) {
+                continue;
+            }
+            try {
+                long value = Long.parseLong(hour);
+                if (value >= currentHour) {
+                    hours.add(value);
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Dropping malformed expiry index entry: " + hour);
+            }
+        }
+        return hours;
+    }
+
+    private static void writeHours(Context context, TreeSet<Long> hours) {
+        StringBuilder encoded = new StringBuilder();
+        for (long hour : hours) {
+            if (encoded.length() > 0) {
+                encoded.append(',');
+            }
+            encoded.append(hour);
+        }
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        editor.putString(KEY_HOURS, encoded.toString());
+        editor.apply();
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
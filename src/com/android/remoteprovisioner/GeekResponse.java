@@ -17,6 +17,7 @@
 package com.android.remoteprovisioner;
 
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,25 +38,57 @@ import java.util.Map;
  *        ? "num_extra_attestation_keys": uint,
  *        ? "time_to_refresh_hours" : uint,
  *        ? "provisioning_url": tstr,
+ *        ? "csr_batch_size": uint,
+ *        ? "key_generation_pause_ms": uint,
+ *        ? "server_timeout_ms": uint,
+ *        ? "scheduler_period_hours": uint,
+ *        ? "schedule_spread_minutes": uint,
+ *        ? "demand_confidence_percent": uint,
+ *        ? "max_response_kb": uint,
+ *        ? "pool_watermarks": { * secLevel: uint => [low: uint, high: uint] },
  *    }
  *
  * The CDDL that defines EekChain is defined in the RemoteProvisioning HAL, but this app does not
- * require any semantic understanding of the format to perform its function.
+ * require any semantic understanding of the format to perform its function. EekChains are only
+ * recorded by their location in the server response, and copied out the first time one is
+ * requested for a given curve.
  */
 public class GeekResponse {
     public static final int NO_EXTRA_KEY_UPDATE = -1;
+    public static final int NO_CSR_BATCH_SIZE_UPDATE = -1;
+    public static final int NO_DEMAND_CONFIDENCE_UPDATE = -1;
+    public static final int NO_MAX_RESPONSE_SIZE_UPDATE = -1;
+    // Curves are small enumerated values, so EEK chains are kept in arrays indexed by curve.
+    public static final int MAX_CURVE = 31;
     private byte[] mChallenge;
-    private Map<Integer, byte[]> mCurveToGeek;
+    private byte[][] mGeekBuffers;
+    private int[] mGeekOffsets;
+    private int[] mGeekLengths;
     public int numExtraAttestationKeys;
     public Duration timeToRefresh;
     public String provisioningUrl;
+    public int csrBatchSize;
+    public Duration keyGenerationPause;
+    public Duration serverTimeout;
+    public Duration schedulerPeriod;
+    public Duration scheduleSpread;
+    public int demandConfidence;
+    public int maxResponseSize;
+    // Maps a security level to the {low, high} watermarks for its pool of unassigned keys. Only
+    // pairs that are within bounds, with low no higher than high, are kept.
+    public final Map<Integer, int[]> poolWatermarks = new HashMap<>();
 
     /**
      * Default initializer.
      */
     public GeekResponse() {
-        mCurveToGeek = new HashMap();
+        mGeekBuffers = new byte[0][];
+        mGeekOffsets = new int[0];
+        mGeekLengths = new int[0];
         numExtraAttestationKeys = NO_EXTRA_KEY_UPDATE;
+        csrBatchSize = NO_CSR_BATCH_SIZE_UPDATE;
+        demandConfidence = NO_DEMAND_CONFIDENCE_UPDATE;
+        maxResponseSize = NO_MAX_RESPONSE_SIZE_UPDATE;
     }
 
     /**
@@ -67,7 +100,32 @@ public class GeekResponse {
      *                  chain.
      */
     public void addGeek(int curve, byte[] geekChain) {
-        mCurveToGeek.put(curve, geekChain);
+        addGeek(curve, geekChain, 0 /* offset */, geekChain.length);
+    }
+
+    /**
+     * Records where the CBOR encoded array containing a GEEK and the corresponding certificate
+     * chain for the EC {@code curve} is located in {@code buffer}. Nothing is copied until the
+     * chain is first requested through {@link #getGeekChain}.
+     *
+     * @param curve an integer which represents an EC curve, no larger than {@link #MAX_CURVE}.
+     * @param buffer the buffer holding the encoded chain, typically the whole server response. It
+     *               must not be modified afterwards.
+     * @param offset the offset of the encoded chain in {@code buffer}.
+     * @param length the length of the encoded chain.
+     */
+    public synchronized void addGeek(int curve, byte[] buffer, int offset, int length) {
+        if (curve < 0 || curve > MAX_CURVE) {
+            throw new IllegalArgumentException("Unsupported curve: " + curve);
+        }
+        if (curve >= mGeekBuffers.length) {
+            mGeekBuffers = Arrays.copyOf(mGeekBuffers, curve + 1);
+            mGeekOffsets = Arrays.copyOf(mGeekOffsets, curve + 1);
+            mGeekLengths = Arrays.copyOf(mGeekLengths, curve + 1);
+        }
+        mGeekBuffers[curve] = buffer;
+        mGeekOffsets[curve] = offset;
+        mGeekLengths[curve] = length;
     }
 
     /**
@@ -76,8 +134,21 @@ public class GeekResponse {
      * @param curve an integer which represents an EC curve.
      * @return the corresponding encoded CBOR array.
      */
-    public byte[] getGeekChain(int curve) {
-        return mCurveToGeek.get(curve);
+    public synchronized byte[] getGeekChain(int curve) {
+        if (curve < 0 || curve >= mGeekBuffers.length || mGeekBuffers[curve] == null) {
+            return null;
+        }
+        byte[] buffer = mGeekBuffers[curve];
+        int offset = mGeekOffsets[curve];
+        int length = mGeekLengths[curve];
+        if (offset == 0 && length == buffer.length) {
+            return buffer;
+        }
+        // Materialize the chain once, and drop the reference to the larger buffer it came from.
+        byte[] geekChain = Arrays.copyOfRange(buffer, offset, offset + length);
+        mGeekBuffers[curve] = geekChain;
+        mGeekOffsets[curve] = 0;
+        return geekChain;
     }
 
     /**
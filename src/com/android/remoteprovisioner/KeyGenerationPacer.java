@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import android.content.Context;
+import android.os.RemoteException;
+import android.security.remoteprovisioning.IRemoteProvisioning;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Paces the generation of attestation keys for one security level, so that keystore is not
+ * flooded with requests while the pool is being filled.
+ *
+ * Rather than pausing for a fixed time after every key, the pause adapts to how keystore is
+ * coping, in the manner of AIMD congestion control. Each key that is generated in about the usual
+ * time shortens the pause by {@link #DECREASE_STEP_MS}, while a key that takes more than {@link
+ * #CONGESTION_FACTOR} times as long as usual, or fails outright, doubles it. The pause never drops
+ * below the usual generation time, so keystore spends at most half its time generating keys for
+ * the pool: a fast TEE is refilled in a fraction of a second, while StrongBox is given time to
+ * serve other requests. The pause is also kept between {@link #MIN_PAUSE_MS} and {@link
+ * #MAX_PAUSE_MS}.
+ *
+ * There is one pacer per security level for the whole process, shared by the periodic job and
+ * GenerateRkpKeyService, and each starts out with the pause configured by the server. If the
+ * server pushes a different pause, the pacer starts over from it.
+ */
+public class KeyGenerationPacer {
+    public static final long MIN_PAUSE_MS = 20;
+    public static final long MAX_PAUSE_MS = SettingsManager.KEY_GENERATION_PAUSE_MS_MAX;
+    public static final long DECREASE_STEP_MS = 100;
+    public static final int CONGESTION_FACTOR = 2;
+
+    // Weight of each new latency sample in the usual generation time.
+    private static final double LATENCY_WEIGHT = 0.25;
+
+    private static final Map<Integer, KeyGenerationPacer> sPacers = new HashMap<>();
+
+    private long mConfiguredPauseMs;
+    private long mPauseMs;
+    private double mUsualLatencyMs = -1;
+
+    /**
+     * Creates a pacer which starts out pausing for {@code initialPauseMs} between keys.
+     */
+    public KeyGenerationPacer(long initialPauseMs) {
+        mConfiguredPauseMs = initialPauseMs;
+        mPauseMs = clamp(initialPauseMs);
+    }
+
+    /**
+     * Returns the process wide pacer for {@code secLevel}, creating it with the key generation
+     * pause from SettingsManager if this is the first time it is needed, or updating it if that
+     * pause has changed since.
+     */
+    public static KeyGenerationPacer getInstance(Context context, int secLevel) {
+        long configuredPauseMs = SettingsManager.getKeyGenerationPause(context).toMillis();
+        synchronized (sPacers) {
+            KeyGenerationPacer pacer = sPacers.get(secLevel);
+            if (pacer == null) {
+                pacer = new KeyGenerationPacer(configuredPauseMs);
+                sPacers.put(secLevel, pacer);
+            } else {
+                pacer.setConfiguredPause(configuredPauseMs);
+            }
+            return pacer;
+        }
+    }
+
+    /**
+     * Restarts the pause from {@code pauseMs} if that differs from the pause the pacer was last
+     * configured with. The usual generation time is kept, since keystore has not changed.
+     */
+    public synchronized void setConfiguredPause(long pauseMs) {
+        if (pauseMs != mConfiguredPauseMs) {
+            mConfiguredPauseMs = pauseMs;
+            mPauseMs = clamp(pauseMs);
+        }
+    }
+
+    /**
+     * Has keystore generate a key pair for {@code secLevel}, recording how long it took or that
+     * it failed. This does not pause; call {@link #pause} between keys.
+     */
+    public void generateKeyPair(IRemoteProvisioning binder, int secLevel) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            binder.generateKeyPair(false /* isTestMode */, secLevel);
+        } catch (RemoteException | RuntimeException e) {
+            onKeyGenerationFailed();
+            throw e;
+        }
+        onKeyGenerated((System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Sleeps for the current pause.
+     */
+    public void pause() throws InterruptedException {
+        Thread.sleep(getPauseMillis());
+    }
+
+    /**
+     * Returns the current pause between keys, in milliseconds.
+     */
+    public synchronized long getPauseMillis() {
+        return mPauseMs;
+    }
+
+    /**
+     * Records that a key was generated in {@code latencyMs}.
+     */
+    public synchronized void onKeyGenerated(long latencyMs) {
+        if (mUsualLatencyMs >= 0 && latencyMs > CONGESTION_FACTOR * mUsualLatencyMs) {
+            backOff();
+        } else {
+            mPauseMs = clamp(max(mPauseMs - DECREASE_STEP_MS, (long) mUsualLatencyMs));
+        }
+        mUsualLatencyMs = mUsualLatencyMs < 0
+                ? latencyMs : mUsualLatencyMs + LATENCY_WEIGHT * (latencyMs - mUsualLatencyMs);
+    }
+
+    /**
+     * Records that keystore failed to generate a key.
+     */
+    public synchronized void onKeyGenerationFailed() {
+        backOff();
+    }
+
+    private void backOff() {
+        mPauseMs = clamp(max(mPauseMs * 2, DECREASE_STEP_MS));
+    }
+
+    private static long clamp(long pauseMs) {
+        return max(MIN_PAUSE_MS, min(MAX_PAUSE_MS, pauseMs));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import java.util.Arrays;
+
+/**
+ * The handful of fields the provisioner needs from the leaf of a certificate chain, as located by
+ * {@link X509Utils#scanLeafCertificate}. Nothing has been copied out of the chain; the fields
+ * are offsets into the buffer that was scanned.
+ */
+public class LeafCertificate {
+    // An uncompressed P-256 point, x | y, without the leading format byte.
+    public static final int RAW_PUBLIC_KEY_SIZE = 64;
+
+    private final byte[] mBuffer;
+    private final int mOffset;
+    private final int mLength;
+    private final long mNotAfter;
+    private final int mPublicKeyOffset;
+
+    /**
+     * @param buffer the buffer holding the encoded certificate chain.
+     * @param offset the offset of the leaf certificate in {@code buffer}.
+     * @param length the length of the encoded leaf certificate.
+     * @param notAfter the end of the validity period, in milliseconds since the epoch.
+     * @param publicKeyOffset the offset in {@code buffer} of the x coordinate of the public key.
+     */
+    public LeafCertificate(byte[] buffer, int offset, int length, long notAfter,
+                           int publicKeyOffset) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        mNotAfter = notAfter;
+        mPublicKeyOffset = publicKeyOffset;
+    }
+
+    /**
+     * Returns a copy of the DER encoded leaf certificate.
+     */
+    public byte[] getEncoded() {
+        return Arrays.copyOfRange(mBuffer, mOffset, mOffset + mLength);
+    }
+
+    /**
+     * Returns the end of the certificate's validity period, in milliseconds since the epoch.
+     */
+    public long getNotAfter() {
+        return mNotAfter;
+    }
+
+    /**
+     * Copies the certificate's public key, formatted as by
+     * {@link X509Utils#getAndFormatRawPublicKey}, into {@code dest} at {@code destOffset}.
+     */
+    public void copyRawPublicKey(byte[] dest, int destOffset) {
+        System.arraycopy(mBuffer, mPublicKeyOffset, dest, destOffset, RAW_PUBLIC_KEY_SIZE);
+    }
+}
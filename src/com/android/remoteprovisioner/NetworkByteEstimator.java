@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Learns how many bytes a run of the provisioning job sends and receives, from the sizes of the
+ * requests and responses ServerInterface actually exchanged with the server, so that the job can
+ * give JobScheduler accurate network estimates.
+ *
+ * Each quantity is an exponentially weighted moving average with weight {@link #ALPHA} on the
+ * newest observation:
+ * <ul>
+ *     <li>the request and response of fetchEekChain, which don't depend on the number of keys.
+ *     <li>the certificates shared by every chain in a signCertificates response, and the unique
+ *         certificates per key.
+ *     <li>the signCertificates request per key. The CSR's fixed overhead can't be separated from
+ *         the keys it carries, so it is amortized over them; batches are of a fairly steady size,
+ *         so this is close enough.
+ * </ul>
+ * Until a call of each kind has succeeded there is no estimate, and the caller must fall back to
+ * its own.
+ *
+ * The averages are persisted in SharedPreferences, separately from SettingsManager so that
+ * resetting the settings to their defaults does not lose them.
+ */
+public class NetworkByteEstimator {
+    public static final float ALPHA = 0.25f;
+
+    private static final String KEY_GEEK_UPLOAD = "geek_upload";
+    private static final String KEY_GEEK_DOWNLOAD = "geek_download";
+    private static final String KEY_SIGN_UPLOAD_PER_KEY = "sign_upload_per_key";
+    private static final String KEY_SIGN_DOWNLOAD_SHARED = "sign_download_shared";
+    private static final String KEY_SIGN_DOWNLOAD_PER_KEY = "sign_download_per_key";
+    private static final String PREFERENCES_NAME = "com.android.remoteprovisioner.network";
+
+    /**
+     * Records the sizes of a successful fetchEekChain call.
+     */
+    public static synchronized void recordGeekCall(Context context, int uploadBytes,
+            int downloadBytes) {
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        SharedPreferences.Editor editor = sharedPref.edit();
+        update(sharedPref, editor, KEY_GEEK_UPLOAD, uploadBytes);
+        update(sharedPref, editor, KEY_GEEK_DOWNLOAD, downloadBytes);
+        editor.apply();
+    }
+
+    /**
+     * Records the sizes of a successful signCertificates call which signed {@code numKeys} keys,
+     * of whose response {@code uniqueBytes} were the certificates unique to each key.
+     */
+    public static synchronized void recordSignCall(Context context, int numKeys, int uploadBytes,
+            int downloadBytes, int uniqueBytes) {
+        if (numKeys <= 0) {
+            return;
+        }
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        SharedPreferences.Editor editor = sharedPref.edit();
+        update(sharedPref, editor, KEY_SIGN_UPLOAD_PER_KEY, (float) uploadBytes / numKeys);
+        update(sharedPref, editor, KEY_SIGN_DOWNLOAD_SHARED, downloadBytes - uniqueBytes);
+        update(sharedPref, editor, KEY_SIGN_DOWNLOAD_PER_KEY, (float) uniqueBytes / numKeys);
+        editor.apply();
+    }
+
+    /**
+     * Returns the estimated number of bytes uploaded by a run which provisions {@code numKeys}
+     * keys, or -1 if there is no estimate yet.
+     */
+    public static synchronized long estimateUploadBytes(Context context, int numKeys) {
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        float geek = sharedPref.getFloat(KEY_GEEK_UPLOAD, -1);
+        float perKey = sharedPref.getFloat(KEY_SIGN_UPLOAD_PER_KEY, -1);
+        if (geek < 0 || perKey < 0) {
+            return -1;
+        }
+        return Math.round(geek + perKey * numKeys);
+    }
+
+    /**
+     * Returns the estimated number of bytes downloaded by a run which provisions {@code numKeys}
+     * keys, or -1 if there is no estimate yet.
+     */
+    public static synchronized long estimateDownloadBytes(Context context, int numKeys) {
+        SharedPreferences sharedPref = getSharedPreferences(context);
+        float geek = sharedPref.getFloat(KEY_GEEK_DOWNLOAD, -1);
+        float shared = sharedPref.getFloat(KEY_SIGN_DOWNLOAD_SHARED, -1);
+        float perKey = sharedPref.getFloat(KEY_SIGN_DOWNLOAD_PER_KEY, -1);
+        if (geek < 0 || shared < 0 || perKey < 0) {
+            return -1;
+        }
+        return Math.round(geek + shared + perKey * numKeys);
+    }
+
+    /**
+     * Forgets all observations.
+     */
+    public static synchronized void clear(Context context) {
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        editor.clear();
+        editor.apply();
+    }
+
+    private static void update(SharedPreferences sharedPref, SharedPreferences.Editor editor,
+            String key, float observed) {
+        float average = sharedPref.getFloat(key, -1);
+        if (average < 0) {
+            average = observed;
+        } else {
+            average += ALPHA * (observed - average);
+        }
+        editor.putFloat(key, average);
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.remoteprovisioner;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 import android.app.job.JobParameters;
@@ -30,6 +31,14 @@ import android.security.remoteprovisioning.IRemoteProvisioning;
 import android.util.Log;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A class that extends JobService in order to be scheduled to check the status of the attestation
@@ -38,11 +47,8 @@ import java.time.Duration;
  */
 public class PeriodicProvisioner extends JobService {
 
-    private static final int FAILURE_MAXIMUM = 5;
-    private static final int SAFE_CSR_BATCH_SIZE = 20;
-
-    // How long to wait in between key pair generations to avoid flooding keystore with requests.
-    private static final Duration KEY_GENERATION_PAUSE = Duration.ofMillis(1000);
+    // There are rarely more than two IRemotelyProvisionedComponents, a TEE and a StrongBox one.
+    private static final int MAX_CONCURRENT_SEC_LEVELS = 2;
 
     // If the connection is metered when the job service is started, try to avoid provisioning.
     private static final long METERED_CONNECTION_EXPIRATION_CHECK = Duration.ofDays(1).toMillis();
@@ -63,27 +69,44 @@ public class PeriodicProvisioner extends JobService {
     }
 
     /**
-     * Allows the job to be stopped if need be.
+     * Allows the job to be stopped if need be. The run is interrupted, which cancels the security
+     * level workers and any key generation or submission they are waiting on, and JobScheduler is
+     * asked to reschedule the job with backoff in place of the retry the run would have scheduled.
      */
     public boolean onStopJob(JobParameters params) {
-        return false;
+        if (mProvisionerThread != null) {
+            mProvisionerThread.stopRun();
+        }
+        return true;
     }
 
     private class ProvisionerThread extends Thread {
         private Context mContext;
         private JobParameters mParams;
+        private volatile boolean mStopped;
 
         ProvisionerThread(JobParameters params, Context context) {
             mParams = params;
             mContext = context;
         }
 
+        void stopRun() {
+            mStopped = true;
+            interrupt();
+        }
+
         public void run() {
+            // Each failure is recorded in RetryPolicy where its class is known, whether here, in
+            // a security level's worker, in Provisioner or in ServerInterface. Whether the run
+            // succeeded is decided from its own results rather than from RetryPolicy's counts,
+            // which saturate and which GenerateRkpKeyService updates too.
+            boolean succeeded = false;
             try {
                 IRemoteProvisioning binder =
                         IRemoteProvisioning.Stub.asInterface(ServiceManager.getService(SERVICE));
                 if (binder == null) {
                     Log.e(TAG, "Binder returned null pointer to RemoteProvisioning service.");
+                    RetryPolicy.recordFailure(mContext, RetryPolicy.FAILURE_BINDER);
                     jobFinished(mParams, false /* wantsReschedule */);
                     return;
                 }
@@ -105,14 +128,23 @@ public class PeriodicProvisioner extends JobService {
                 if (implInfos == null) {
                     Log.e(TAG, "No instances of IRemotelyProvisionedComponent registered in "
                                + SERVICE);
+                    RetryPolicy.recordFailure(mContext, RetryPolicy.FAILURE_BINDER);
                     jobFinished(mParams, false /* wantsReschedule */);
                     return;
                 }
+                // Chains that a previous run received but didn't get to store count towards the
+                // pool, so store them before checking what it needs.
+                int replayed = Provisioner.replayJournal(binder, mContext);
+                if (replayed > 0) {
+                    Log.i(TAG, "Provisioned " + replayed + " keys from the journal");
+                }
+                AttestationPoolStatus[] pools = new AttestationPoolStatus[implInfos.length];
                 int[] keysNeededForSecLevel = new int[implInfos.length];
-                boolean provisioningNeeded =
-                        isProvisioningNeeded(binder, expiringBy, implInfos, keysNeededForSecLevel);
+                boolean provisioningNeeded = isProvisioningNeeded(
+                        binder, expiringBy, implInfos, pools, keysNeededForSecLevel);
                 GeekResponse resp = null;
                 if (!provisioningNeeded) {
+                    ExpiryIndex.setCheckedUntil(mContext, expiringBy);
                     if (!isMetered) {
                         // So long as the connection is unmetered, go ahead and grab an updated
                         // device configuration file.
@@ -121,14 +153,13 @@ public class PeriodicProvisioner extends JobService {
                             jobFinished(mParams, false /* wantsReschedule */);
                             return;
                         }
-                        SettingsManager.setDeviceConfig(mContext,
-                                resp.numExtraAttestationKeys,
-                                resp.timeToRefresh,
-                                resp.provisioningUrl);
+                        updateDeviceConfig(resp);
                         if (resp.numExtraAttestationKeys == 0) {
                             binder.deleteAllKeys();
+                            ExpiryIndex.clear(mContext);
                         }
                     }
+                    succeeded = true;
                     jobFinished(mParams, false /* wantsReschedule */);
                     return;
                 }
@@ -137,72 +168,203 @@ public class PeriodicProvisioner extends JobService {
                     jobFinished(mParams, false /* wantsReschedule */);
                     return;
                 }
-                SettingsManager.setDeviceConfig(mContext,
-                            resp.numExtraAttestationKeys,
-                            resp.timeToRefresh,
-                            resp.provisioningUrl);
+                updateDeviceConfig(resp);
 
                 if (resp.numExtraAttestationKeys == 0) {
                     // Provisioning is disabled. Check with the server if it's time to turn it back
                     // on. If not, quit. Avoid checking if the connection is metered. Opt instead
                     // to just continue using the fallback factory provisioned key.
                     binder.deleteAllKeys();
+                    ExpiryIndex.clear(mContext);
+                    succeeded = true;
                     jobFinished(mParams, false /* wantsReschedule */);
                     return;
                 }
+                // Each security level is provisioned on its own worker, so that a slow
+                // IRemotelyProvisionedComponent such as StrongBox doesn't hold up the others.
+                List<Callable<Boolean>> workers = new ArrayList<>();
                 for (int i = 0; i < implInfos.length; i++) {
-                    // Break very large CSR requests into chunks, so as not to overwhelm the
-                    // backend.
-                    int keysToCertify = keysNeededForSecLevel[i];
-                    while (keysToCertify != 0) {
-                        int batchSize = min(keysToCertify, SAFE_CSR_BATCH_SIZE);
-                        Provisioner.provisionCerts(batchSize,
-                                                   implInfos[i].secLevel,
-                                                   resp.getGeekChain(implInfos[i].supportedCurve),
-                                                   resp.getChallenge(),
-                                                   binder,
-                                                   mContext);
-                        keysToCertify -= batchSize;
+                    ImplInfo implInfo = implInfos[i];
+                    AttestationPoolStatus pool = pools[i];
+                    int keysNeeded = keysNeededForSecLevel[i];
+                    if (keysNeeded == 0) {
+                        continue;
                     }
+                    GeekResponse geekResp = resp;
+                    workers.add(() ->
+                            provisionSecLevel(binder, implInfo, pool, keysNeeded, geekResp));
+                }
+                ExecutorService workerExecutor = Executors.newFixedThreadPool(
+                        max(1, min(workers.size(), MAX_CONCURRENT_SEC_LEVELS)));
+                boolean workersSucceeded = true;
+                try {
+                    for (Future<Boolean> worker : workerExecutor.invokeAll(workers)) {
+                        workersSucceeded &= getWorkerResult(worker);
+                    }
+                } finally {
+                    workerExecutor.shutdownNow();
+                }
+                if (workersSucceeded) {
+                    ExpiryIndex.setCheckedUntil(mContext, expiringBy);
+                    succeeded = true;
                 }
                 jobFinished(mParams, false /* wantsReschedule */);
             } catch (RemoteException e) {
+                RetryPolicy.recordFailure(mContext, RetryPolicy.FAILURE_BINDER);
                 jobFinished(mParams, false /* wantsReschedule */);
                 Log.e(TAG, "Error on the binder side during provisioning.", e);
             } catch (InterruptedException e) {
                 jobFinished(mParams, false /* wantsReschedule */);
                 Log.e(TAG, "Provisioner thread interrupted.", e);
+            } finally {
+                if (mStopped) {
+                    // JobScheduler reschedules the job itself, and scheduling it here would
+                    // replace that with a run on the regular schedule.
+                    Log.i(TAG, "Provisioning job stopped, leaving the retry to JobScheduler.");
+                } else {
+                    if (succeeded) {
+                        RetryPolicy.recordSuccess(mContext);
+                    }
+                    // Schedule the next run, either a retry if this one failed or for when the
+                    // next keys are due to expire, now that this run has stored any new ones.
+                    // Rescheduling replaces the running job, so it can only be done once this run
+                    // of the job has finished.
+                    BootReceiver.scheduleProvisioningJob(mContext);
+                }
+            }
+        }
+
+        private boolean getWorkerResult(Future<Boolean> worker) throws InterruptedException {
+            try {
+                return worker.get();
+            } catch (ExecutionException | CancellationException e) {
+                Log.e(TAG, "Security level worker did not finish.", e);
+                return false;
+            }
+        }
+
+        private void updateDeviceConfig(GeekResponse resp) {
+            SettingsManager.setDeviceConfig(mContext,
+                    resp.numExtraAttestationKeys,
+                    resp.timeToRefresh,
+                    resp.provisioningUrl);
+            SettingsManager.setPerformanceConfig(mContext,
+                    resp.csrBatchSize,
+                    resp.keyGenerationPause,
+                    resp.serverTimeout,
+                    resp.schedulerPeriod,
+                    resp.scheduleSpread,
+                    resp.poolWatermarks);
+            if (resp.demandConfidence != GeekResponse.NO_DEMAND_CONFIDENCE_UPDATE) {
+                SettingsManager.setDemandConfidence(mContext, resp.demandConfidence);
+            }
+            if (resp.maxResponseSize != GeekResponse.NO_MAX_RESPONSE_SIZE_UPDATE) {
+                SettingsManager.setMaxResponseSize(mContext, resp.maxResponseSize);
             }
         }
 
         private boolean checkGeekResp(GeekResponse resp) {
             if (resp == null) {
                 Log.e(TAG, "Failed to get a response from the server.");
-                if (SettingsManager.getFailureCounter(mContext) > FAILURE_MAXIMUM) {
-                    Log.e(TAG, "Too many failures, resetting defaults.");
-                    SettingsManager.clearPreferences(mContext);
-                }
                 jobFinished(mParams, false /* wantsReschedule */);
                 return false;
             }
             return true;
         }
 
+        /**
+         * Provisions {@code keysToCertify} keys for one security level, breaking very large CSR
+         * requests into batches so as not to overwhelm the backend. Failures are logged and
+         * contained to this security level, but are reported so that the run is retried.
+         *
+         * The batches are pipelined by {@link CsrPipeline}, so that the keys for one batch are
+         * generated while the previous one is out at the server.
+         *
+         * @return true if every key for the security level was provisioned.
+         */
+        private boolean provisionSecLevel(IRemoteProvisioning binder, ImplInfo implInfo,
+                AttestationPoolStatus pool, int keysToCertify, GeekResponse resp)
+                throws InterruptedException {
+            ExecutorService submitExecutor = Executors.newSingleThreadExecutor();
+            try {
+                return provisionBatches(
+                        binder, implInfo, pool, keysToCertify, resp, submitExecutor);
+            } catch (RemoteException e) {
+                RetryPolicy.recordFailure(mContext, RetryPolicy.FAILURE_BINDER);
+                Log.e(TAG, "Error on the binder side while provisioning security level "
+                        + implInfo.secLevel, e);
+                return false;
+            } catch (RuntimeException e) {
+                // Keystore reports errors such as ServiceSpecificException this way.
+                RetryPolicy.recordFailure(mContext, RetryPolicy.FAILURE_BINDER);
+                Log.e(TAG, "Failed to provision security level " + implInfo.secLevel, e);
+                return false;
+            } finally {
+                submitExecutor.shutdownNow();
+            }
+        }
+
+        private boolean provisionBatches(IRemoteProvisioning binder, ImplInfo implInfo,
+                AttestationPoolStatus pool, int keysToCertify, GeekResponse resp,
+                ExecutorService submitExecutor) throws InterruptedException, RemoteException {
+            KeyGenerationPacer pacer = KeyGenerationPacer.getInstance(mContext, implInfo.secLevel);
+            // Prioritize provisioning if there are no keys available. No keys being available
+            // indicates that this is the first time a device is being brought online.
+            boolean paced = pool.total != 0;
+            byte[] geekChain = resp.getGeekChain(implInfo.supportedCurve);
+            byte[] challenge = resp.getChallenge();
+            CsrPipeline.Batch batch = new CsrPipeline.Batch() {
+                @Override
+                public void generateKeys(int numKeys)
+                        throws InterruptedException, RemoteException {
+                    ProvisionerThread.this.generateKeys(
+                            binder, implInfo.secLevel, numKeys, pacer, paced);
+                }
+
+                @Override
+                public byte[] generateCertificateRequest(int numKeys) {
+                    return Provisioner.generateCertificateRequest(
+                            numKeys, implInfo.secLevel, geekChain, challenge, binder);
+                }
+
+                @Override
+                public int submitCertificateRequest(byte[] certificateRequest) {
+                    return Provisioner.submitCertificateRequest(
+                            certificateRequest, challenge, implInfo.secLevel, binder, mContext);
+                }
+            };
+            return CsrPipeline.provision(mContext, batch, submitExecutor, keysToCertify,
+                    SettingsManager.getCsrBatchSize(mContext), pool.total - pool.attested);
+        }
+
+        private void generateKeys(IRemoteProvisioning binder, int secLevel, int numKeys,
+                KeyGenerationPacer pacer, boolean paced)
+                throws InterruptedException, RemoteException {
+            for (int i = 0; i < numKeys; i++) {
+                pacer.generateKeyPair(binder, secLevel);
+                // Avoid flooding keystore with requests.
+                if (paced) {
+                    pacer.pause();
+                }
+            }
+        }
+
         private boolean isProvisioningNeeded(
                 IRemoteProvisioning binder, long expiringBy, ImplInfo[] implInfos,
-                int[] keysNeededForSecLevel)
-                throws InterruptedException, RemoteException {
-            if (implInfos == null || keysNeededForSecLevel == null
+                AttestationPoolStatus[] pools, int[] keysNeededForSecLevel)
+                throws RemoteException {
+            if (implInfos == null || pools == null || keysNeededForSecLevel == null
+                || pools.length != implInfos.length
                 || keysNeededForSecLevel.length != implInfos.length) {
                 Log.e(TAG, "Invalid argument.");
                 return false;
             }
             boolean provisioningNeeded = false;
             for (int i = 0; i < implInfos.length; i++) {
-                keysNeededForSecLevel[i] =
-                        generateNumKeysNeeded(binder,
-                                   expiringBy,
-                                   implInfos[i].secLevel);
+                pools[i] = binder.getPoolStatus(expiringBy, implInfos[i].secLevel);
+                DemandForecaster.recordPoolStatus(
+                        mContext, implInfos[i].secLevel, pools[i], System.currentTimeMillis());
+                keysNeededForSecLevel[i] = calcNumKeysNeeded(pools[i], implInfos[i].secLevel);
                 if (keysNeededForSecLevel[i] > 0) {
                     provisioningNeeded = true;
                 }
@@ -211,23 +373,24 @@ public class PeriodicProvisioner extends JobService {
         }
 
         /**
-         * This method will generate and bundle up keys for signing to make sure that there will be
-         * enough keys available for use by the system when current keys expire.
+         * This method will calculate how many keys need to be signed to make sure that there will
+         * be enough keys available for use by the system when current keys expire. Any keys this
+         * requires beyond those already unsigned in the pool are generated just before the batch
+         * that will certify them, in {@link #provisionSecLevel}.
          *
          * Enough keys is defined by checking how many keys are currently assigned to apps and
          * generating enough keys to cover any expiring certificates plus a bit of buffer room
-         * defined by {@code sExtraSignedKeysAvailable}.
+         * sized by {@link DemandForecaster} to cover the demand expected over its forecast
+         * horizon.
          *
          * This allows devices to dynamically resize their key pools as the user downloads and
          * removes apps that may also use attestation.
          */
-        private int generateNumKeysNeeded(IRemoteProvisioning binder, long expiringBy, int secLevel)
-                throws InterruptedException, RemoteException {
-            AttestationPoolStatus pool = binder.getPoolStatus(expiringBy, secLevel);
+        private int calcNumKeysNeeded(AttestationPoolStatus pool, int secLevel) {
             int unattestedKeys = pool.total - pool.attested;
             int keysInUse = pool.attested - pool.unassigned;
-            int totalSignedKeys = keysInUse + SettingsManager.getExtraSignedKeysAvailable(mContext);
-            int generated;
+            int totalSignedKeys = keysInUse
+                    + DemandForecaster.getExtraSignedKeysAvailable(mContext, secLevel);
             // If nothing is expiring, and the amount of available unassigned keys is sufficient,
             // then do nothing. Otherwise, generate the complete amount of totalSignedKeys. It will
             // reduce network usage if the app just provisions an entire new batch in one go, rather
@@ -236,17 +399,8 @@ public class PeriodicProvisioner extends JobService {
             if (pool.expiring > pool.unassigned && pool.attested == totalSignedKeys) {
                 return 0;
             }
-            for (generated = 0;
-                    generated + unattestedKeys < totalSignedKeys; generated++) {
-                binder.generateKeyPair(false /* isTestMode */, secLevel);
-                // Prioritize provisioning if there are no keys available. No keys being available
-                // indicates that this is the first time a device is being brought online.
-                if (pool.total != 0) {
-                    Thread.sleep(KEY_GENERATION_PAUSE.toMillis());
-                }
-            }
             if (totalSignedKeys > 0) {
-                return generated + unattestedKeys;
+                return max(totalSignedKeys, unattestedKeys);
             }
             return 0;
         }
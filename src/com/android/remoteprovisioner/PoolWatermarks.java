@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import static java.lang.Math.max;
+
+import android.content.Context;
+
+/**
+ * The low and high watermarks for the number of unassigned signed keys in the pool of one
+ * security level. Once the pool drops below the low watermark it is refilled in the background up
+ * to the high watermark, so that apps attesting find a key waiting rather than an empty pool.
+ *
+ * The gap between the two gives hysteresis: after a refill, the pool must lose {@code high - low
+ * + 1} keys before it is refilled again, so a pool that hovers around one threshold doesn't cause
+ * a stream of small refills, each with its own CSR.
+ *
+ * The server can set the watermarks per security level in the device config. Otherwise the high
+ * watermark is the number of extra keys forecast by DemandForecaster, and the low watermark is a
+ * third of it.
+ */
+public class PoolWatermarks {
+    public static final int LOW_WATERMARK_DIVISOR = 3;
+
+    public final int low;
+    public final int high;
+
+    public PoolWatermarks(int low, int high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Returns the watermarks for the pool of {@code secLevel}.
+     */
+    public static PoolWatermarks get(Context context, int secLevel) {
+        int low = SettingsManager.getLowWatermark(context, secLevel);
+        int high = SettingsManager.getHighWatermark(context, secLevel);
+        if (low != SettingsManager.WATERMARK_UNSET && high != SettingsManager.WATERMARK_UNSET) {
+            return new PoolWatermarks(low, high);
+        }
+        high = DemandForecaster.getExtraSignedKeysAvailable(context, secLevel);
+        // Round up, so that the pool is refilled before the last key is taken.
+        return new PoolWatermarks(
+                max(1, (high + LOW_WATERMARK_DIVISOR - 1) / LOW_WATERMARK_DIVISOR), high);
+    }
+
+    /**
+     * Returns how many keys need to be signed to bring a pool with {@code unassigned} keys up to
+     * the high watermark, or 0 if it is not yet below the low watermark.
+     */
+    public int keysToRefill(int unassigned) {
+        if (unassigned >= low) {
+            return 0;
+        }
+        return max(0, high - unassigned);
+    }
+}
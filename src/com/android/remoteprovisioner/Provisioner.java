@@ -16,6 +16,8 @@
 
 package com.android.remoteprovisioner;
 
+import static java.lang.Math.min;
+
 import android.annotation.NonNull;
 import android.content.Context;
 import android.hardware.security.keymint.DeviceInfo;
@@ -26,7 +28,15 @@ import android.util.Log;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides an easy package to run the provisioning process from start to finish, interfacing
@@ -36,6 +46,18 @@ import java.util.List;
 public class Provisioner {
     private static final String TAG = "RemoteProvisioningService";
 
+    // Certificate chains are parsed on up to one thread per core. The threads are only kept
+    // around for a short while after a batch is processed.
+    private static final int CHAIN_PARSER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final long CHAIN_PARSER_KEEP_ALIVE_SECONDS = 30;
+    private static final ThreadPoolExecutor sChainParser = new ThreadPoolExecutor(
+            CHAIN_PARSER_THREADS, CHAIN_PARSER_THREADS, CHAIN_PARSER_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sChainParser.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Drives the process of provisioning certs. The method passes the data fetched from the
      * provisioning server along with the requested number of keys to the remote provisioning
@@ -62,9 +84,31 @@ public class Provisioner {
      */
     public static int provisionCerts(int numKeys, int secLevel, byte[] geekChain, byte[] challenge,
             @NonNull IRemoteProvisioning binder, Context context) {
+        byte[] certificateRequest =
+                generateCertificateRequest(numKeys, secLevel, geekChain, challenge, binder);
+        if (certificateRequest == null) {
+            return 0;
+        }
+        return submitCertificateRequest(certificateRequest, challenge, secLevel, binder, context);
+    }
+
+    /**
+     * Has the remote provisioning system backend generate a CSR for {@code numKeys} unsigned keys
+     * and packages it up into the certificate request to be sent to the server. This is the first
+     * half of {@link #provisionCerts}.
+     *
+     * The backend selects from whichever keys are unsigned at the time of calling, so a second
+     * request for the same security level must not be generated until the certificates for the
+     * first have been stored through {@link #submitCertificateRequest}, or the same keys will be
+     * sent for signing twice.
+     *
+     * @return the encoded certificate request, or null on failure.
+     */
+    public static byte[] generateCertificateRequest(int numKeys, int secLevel, byte[] geekChain,
+            byte[] challenge, @NonNull IRemoteProvisioning binder) {
         if (numKeys < 1) {
             Log.e(TAG, "Request at least 1 key to be signed. Num requested: " + numKeys);
-            return 0;
+            return null;
         }
         DeviceInfo deviceInfo = new DeviceInfo();
         ProtectedData protectedData = new ProtectedData();
@@ -74,7 +118,7 @@ public class Provisioner {
         if (macedKeysToSign == null || protectedData.protectedData == null
                 || deviceInfo.deviceInfo == null) {
             Log.e(TAG, "Keystore failed to generate a payload");
-            return 0;
+            return null;
         }
         byte[] certificateRequest =
                 CborUtils.buildCertificateRequest(deviceInfo.deviceInfo,
@@ -83,42 +127,235 @@ public class Provisioner {
                                                   macedKeysToSign);
         if (certificateRequest == null) {
             Log.e(TAG, "Failed to serialize the payload generated by keystore.");
-            return 0;
+            return null;
         }
-        List<byte[]> certChains = ServerInterface.requestSignedCertificates(context,
+        return certificateRequest;
+    }
+
+    /**
+     * Sends a certificate request produced by {@link #generateCertificateRequest} to the server
+     * and stores the certificate chains that come back. This is the second half of
+     * {@link #provisionCerts}, and does not call into the IRemotelyProvisionedComponent, so it can
+     * run while keys for the next request are being generated.
+     *
+     * @return The number of certificates provisioned.
+     */
+    public static int submitCertificateRequest(byte[] certificateRequest, byte[] challenge,
+            int secLevel, @NonNull IRemoteProvisioning binder, Context context) {
+        SignedCertificateChains certChains = ServerInterface.requestSignedCertificates(context,
                         certificateRequest, challenge);
         if (certChains == null) {
             Log.e(TAG, "Server response failed on provisioning attempt.");
             return 0;
         }
+        // Journal the response first, so that if the process dies or keystore fails before every
+        // chain has been stored, the rest can be replayed rather than requested from the server
+        // again.
+        ProvisioningJournal journal = ProvisioningJournal.getInstance(context);
+        int journalId = journal.recordResponse(secLevel, certChains.size(), certChains.getBuffer());
+        int provisioned = storeCertificateChains(certChains, secLevel, binder, journal, journalId,
+                                                 new BitSet(), false /* replay */, context);
+        journal.release(journalId);
+        journal.compact();
+        return provisioned;
+    }
+
+    /**
+     * Stores any certificate chains that were received by a previous process but which it did not
+     * get to hand to keystore before it died, or which keystore failed to store. This should be
+     * called before deciding how many keys need to be provisioned.
+     *
+     * @return The number of certificates provisioned.
+     */
+    public static int replayJournal(@NonNull IRemoteProvisioning binder, Context context) {
+        ProvisioningJournal journal = ProvisioningJournal.getInstance(context);
         int provisioned = 0;
-        for (byte[] certChain : certChains) {
-            // DER encoding specifies leaf to root ordering. Pull the public key and expiration
-            // date from the leaf.
-            X509Certificate cert;
-            try {
-                cert = X509Utils.formatX509Certs(certChain)[0];
-            } catch (CertificateException e) {
-                Log.e(TAG, "Failed to interpret DER encoded certificate chain", e);
-                return 0;
-            }
-            // getTime returns the time in *milliseconds* since the epoch.
-            long expirationDate = cert.getNotAfter().getTime();
-            byte[] rawPublicKey = X509Utils.getAndFormatRawPublicKey(cert);
-            if (rawPublicKey == null) {
-                Log.e(TAG, "Skipping malformed public key.");
+        for (ProvisioningJournal.PendingResponse pending : journal.claimRecovered()) {
+            SignedCertificateChains certChains =
+                    CborUtils.parseSignedCertificateChains(pending.response);
+            if (certChains == null || certChains.size() != pending.numChains) {
+                Log.e(TAG, "Dropping malformed journaled response " + pending.id);
+                BitSet all = new BitSet();
+                all.set(0, pending.numChains);
+                journal.recordPoisoned(pending.id, all);
                 continue;
             }
+            BitSet handled = pending.getHandled();
+            Log.i(TAG, "Replaying " + (pending.numChains - handled.cardinality())
+                    + " journaled certificate chains");
+            provisioned += storeCertificateChains(certChains, pending.secLevel, binder, journal,
+                                                  pending.id, handled, true /* replay */, context);
+        }
+        journal.compact();
+        return provisioned;
+    }
+
+    /**
+     * Hands every certificate chain in {@code certChains} that is not already set in
+     * {@code handled} to keystore, recording in the journal those that were stored, and their
+     * expiration dates in the ExpiryIndex. A chain that can't be parsed is poisoned in the journal
+     * and recorded in RetryPolicy as a server failure. One keystore won't store is recorded as a
+     * binder failure, and left to be replayed, unless this is already the {@code replay}, in which
+     * case it is poisoned so that it isn't tried forever.
+     *
+     * @return The number of certificates provisioned.
+     */
+    private static int storeCertificateChains(SignedCertificateChains certChains, int secLevel,
+            @NonNull IRemoteProvisioning binder, ProvisioningJournal journal, int journalId,
+            BitSet handled, boolean replay, Context context) {
+        // Parse the chains in contiguous chunks spread across the cores, and hand them to keystore
+        // strictly in order as each chunk completes.
+        int numChains = certChains.size();
+        int numChunks = min(numChains, CHAIN_PARSER_THREADS);
+        byte[][] encodedCerts = new byte[numChains][];
+        long[] expirationDates = new long[numChains];
+        byte[] publicKeys = new byte[numChains * LeafCertificate.RAW_PUBLIC_KEY_SIZE];
+        List<Future<?>> chunks = new ArrayList<>(numChunks);
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            int start = chunkStart(chunk, numChunks, numChains);
+            int end = chunkStart(chunk + 1, numChunks, numChains);
+            Runnable parse = () -> {
+                for (int i = start; i < end; i++) {
+                    if (!handled.get(i)) {
+                        parseChain(certChains, i, encodedCerts, expirationDates, publicKeys);
+                    }
+                }
+            };
+            if (numChunks == 1) {
+                parse.run();
+                chunks.add(null);
+            } else {
+                chunks.add(sChainParser.submit(parse));
+            }
+        }
+        int provisioned = 0;
+        int unparsed = 0;
+        int unstored = 0;
+        // The key is marshalled as part of each provisionCertChain call, so one buffer can be
+        // reused for every chain.
+        byte[] rawPublicKey = new byte[LeafCertificate.RAW_PUBLIC_KEY_SIZE];
+        long[] storedExpirationDates = new long[numChains];
+        for (int chunk = 0; chunk < numChunks; chunk++) {
             try {
-                if (SystemInterface.provisionCertChain(rawPublicKey, cert.getEncoded(), certChain,
-                                                       expirationDate, secLevel, binder)) {
-                    provisioned++;
+                if (chunks.get(chunk) != null) {
+                    chunks.get(chunk).get();
+                }
+            } catch (ExecutionException e) {
+                // Any chain the chunk didn't get to is counted as a failure below.
+                Log.e(TAG, "Failed to parse certificate chains", e.getCause());
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while parsing certificate chains", e);
+                Thread.currentThread().interrupt();
+                // None of the remaining chains will be stored, so don't keep the shared parser
+                // pool busy with them.
+                for (int pending = chunk; pending < numChunks; pending++) {
+                    if (chunks.get(pending) != null) {
+                        chunks.get(pending).cancel(true /* mayInterruptIfRunning */);
+                    }
                 }
-            } catch (CertificateEncodingException e) {
-                Log.e(TAG, "Somehow can't re-encode the decoded batch cert...", e);
+                ExpiryIndex.recordExpirations(context, storedExpirationDates, provisioned,
+                                              System.currentTimeMillis());
                 return provisioned;
             }
+            int start = chunkStart(chunk, numChunks, numChains);
+            int end = chunkStart(chunk + 1, numChunks, numChains);
+            BitSet stored = new BitSet();
+            BitSet poisoned = new BitSet();
+            for (int i = start; i < end; i++) {
+                if (handled.get(i)) {
+                    continue;
+                }
+                if (encodedCerts[i] == null) {
+                    unparsed++;
+                    poisoned.set(i);
+                    continue;
+                }
+                System.arraycopy(publicKeys, i * LeafCertificate.RAW_PUBLIC_KEY_SIZE,
+                                 rawPublicKey, 0, LeafCertificate.RAW_PUBLIC_KEY_SIZE);
+                if (SystemInterface.provisionCertChain(rawPublicKey, encodedCerts[i],
+                                                       certChains.get(i), expirationDates[i],
+                                                       secLevel, binder)) {
+                    storedExpirationDates[provisioned++] = expirationDates[i];
+                    stored.set(i);
+                } else {
+                    unstored++;
+                    if (replay) {
+                        poisoned.set(i);
+                    }
+                }
+            }
+            journal.recordCommitted(journalId, stored);
+            journal.recordPoisoned(journalId, poisoned);
+        }
+        ExpiryIndex.recordExpirations(context, storedExpirationDates, provisioned,
+                                      System.currentTimeMillis());
+        if (unparsed > 0) {
+            RetryPolicy.recordFailure(context, RetryPolicy.FAILURE_SERVER_ERROR);
+        }
+        if (unstored > 0) {
+            RetryPolicy.recordFailure(context, RetryPolicy.FAILURE_BINDER);
+        }
+        if (unparsed + unstored > 0) {
+            Log.e(TAG, (unparsed + unstored) + " of " + numChains
+                    + " certificate chains failed to provision.");
         }
         return provisioned;
     }
+
+    private static int chunkStart(int chunk, int numChunks, int numChains) {
+        return (int) ((long) chunk * numChains / numChunks);
+    }
+
+    /**
+     * Pulls the encoded leaf certificate, its expiration date and its public key out of the chain
+     * at {@code index}, into the corresponding slots of the output arrays. On failure the
+     * {@code encodedCerts} slot is left null. Chains are independent of each other, so this may be
+     * called for different chains concurrently.
+     */
+    private static void parseChain(SignedCertificateChains certChains, int index,
+            byte[][] encodedCerts, long[] expirationDates, byte[] publicKeys) {
+        // DER encoding specifies leaf to root ordering, so the leaf is the first of the chain's
+        // unique certificates. Pull the public key and expiration date from it. Scanning the DER
+        // directly avoids decoding anything else, but anything the scanner doesn't understand goes
+        // through the full CertificateFactory parse.
+        byte[] response = certChains.getBuffer();
+        int uniqueOffset = certChains.getUniqueOffset(index);
+        int uniqueLength = certChains.getUniqueLength(index);
+        int publicKeyOffset = index * LeafCertificate.RAW_PUBLIC_KEY_SIZE;
+        LeafCertificate leaf = X509Utils.scanLeafCertificate(response, uniqueOffset, uniqueLength);
+        if (leaf != null) {
+            leaf.copyRawPublicKey(publicKeys, publicKeyOffset);
+            expirationDates[index] = leaf.getNotAfter();
+            encodedCerts[index] = leaf.getEncoded();
+            return;
+        }
+        X509Certificate[] uniqueCerts;
+        try {
+            uniqueCerts = X509Utils.formatX509Certs(Arrays.copyOfRange(
+                    response, uniqueOffset, uniqueOffset + uniqueLength));
+        } catch (CertificateException e) {
+            Log.e(TAG, "Failed to interpret DER encoded certificate chain", e);
+            return;
+        }
+        if (uniqueCerts.length == 0) {
+            Log.e(TAG, "Skipping certificate chain without a leaf.");
+            return;
+        }
+        X509Certificate cert = uniqueCerts[0];
+        byte[] rawPublicKey = X509Utils.getAndFormatRawPublicKey(cert);
+        if (rawPublicKey == null) {
+            Log.e(TAG, "Skipping malformed public key.");
+            return;
+        }
+        try {
+            encodedCerts[index] = cert.getEncoded();
+        } catch (CertificateEncodingException e) {
+            Log.e(TAG, "Somehow can't re-encode the decoded batch cert...", e);
+            return;
+        }
+        System.arraycopy(rawPublicKey, 0, publicKeys, publicKeyOffset,
+                         LeafCertificate.RAW_PUBLIC_KEY_SIZE);
+        // getTime returns the time in *milliseconds* since the epoch.
+        expirationDates[index] = cert.getNotAfter().getTime();
+    }
 }
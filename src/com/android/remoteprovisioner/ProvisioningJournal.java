@@ -0,0 +1,395 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the signCertificates responses received from the server, and of which
+ * of the certificate chains in each have been committed to keystore. If the process dies part way
+ * through storing a batch of chains, or keystore fails to store some of them, the chains can be
+ * replayed from the journal instead of generating new keys and asking the server to sign them all
+ * over again.
+ *
+ * A chain that can't be parsed will never be stored, so it is marked poisoned rather than
+ * committed, and is not replayed either.
+ *
+ * Each append is followed by an fsync, and every record carries a CRC32, so a record torn by a
+ * crash is detected and dropped when the journal is next loaded. Once every chain of a response
+ * has been committed or poisoned, the response is dropped the next time the journal is compacted.
+ *
+ * Only responses recovered from a previous process, or released by whoever recorded them in this
+ * one, are ever offered for replay. Other responses recorded by this process are still being
+ * worked on.
+ */
+public class ProvisioningJournal {
+    public static final int NO_ID = -1;
+    // Far more than the number of batches that can be in flight at once.
+    public static final int MAX_RESPONSES = 8;
+
+    private static final String FILE_NAME = "provisioning_journal";
+    private static final String TAG = "RemoteProvisioningJournal";
+    private static final byte RECORD_RESPONSE = 1;
+    private static final byte RECORD_COMMITTED = 2;
+    private static final byte RECORD_POISONED = 3;
+    // type, payload length and CRC.
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+    private static final int MAX_FILE_SIZE = 4 * 1024 * 1024;
+
+    private static ProvisioningJournal sInstance;
+
+    private final File mFile;
+    private final Map<Integer, Entry> mEntries = new LinkedHashMap<>();
+    private boolean mLoaded;
+    private int mNextId;
+
+    /**
+     * A response with certificate chains that were neither committed nor poisoned by whoever
+     * received it.
+     */
+    public static class PendingResponse {
+        public final int id;
+        public final int secLevel;
+        public final int numChains;
+        public final byte[] response;
+        // The chains that were already stored, and must not be stored again.
+        public final BitSet committed;
+        // The chains that can't be stored, and must not be tried again.
+        public final BitSet poisoned;
+
+        PendingResponse(int id, Entry entry) {
+            this.id = id;
+            secLevel = entry.secLevel;
+            numChains = entry.numChains;
+            response = entry.response;
+            committed = (BitSet) entry.committed.clone();
+            poisoned = (BitSet) entry.poisoned.clone();
+        }
+
+        /**
+         * Returns the chains that must not be replayed, whether committed or poisoned.
+         */
+        public BitSet getHandled() {
+            BitSet handled = (BitSet) committed.clone();
+            handled.or(poisoned);
+            return handled;
+        }
+    }
+
+    private static class Entry {
+        final int secLevel;
+        final int numChains;
+        final byte[] response;
+        final BitSet committed = new BitSet();
+        final BitSet poisoned = new BitSet();
+        boolean recovered;
+
+        Entry(int secLevel, int numChains, byte[] response) {
+            this.secLevel = secLevel;
+            this.numChains = numChains;
+            this.response = response;
+        }
+
+        boolean isComplete() {
+            BitSet handled = (BitSet) committed.clone();
+            handled.or(poisoned);
+            return handled.nextClearBit(0) >= numChains;
+        }
+    }
+
+    /**
+     * Returns the journal kept in the app's no backup directory.
+     */
+    public static synchronized ProvisioningJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProvisioningJournal(new File(context.getNoBackupFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a journal backed by {@code file}. Any responses already recorded in the file are
+     * treated as recovered from a previous process. Only one instance may use a file at a time.
+     */
+    public ProvisioningJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Records a signCertificates response before any of its chains are stored.
+     *
+     * @return the ID to pass to {@link #recordCommitted} and {@link #recordPoisoned}, or
+     *         {@link #NO_ID} if the response could not be journaled.
+     */
+    public synchronized int recordResponse(int secLevel, int numChains, byte[] response) {
+        load();
+        int id = mNextId++;
+        ByteBuffer payload = ByteBuffer.allocate(12 + response.length);
+        payload.putInt(id).putInt(secLevel).putInt(numChains).put(response);
+        if (!append(RECORD_RESPONSE, payload.array())) {
+            return NO_ID;
+        }
+        mEntries.put(id, new Entry(secLevel, numChains, response));
+        while (mEntries.size() > MAX_RESPONSES) {
+            Iterator<Integer> it = mEntries.keySet().iterator();
+            Log.w(TAG, "Dropping journaled response " + it.next());
+            it.remove();
+        }
+        return id;
+    }
+
+    /**
+     * Records that the {@code chains} of the response {@code id} have been stored in keystore, and
+     * must not be replayed.
+     */
+    public synchronized void recordCommitted(int id, BitSet chains) {
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            recordChains(RECORD_COMMITTED, id, chains, entry.committed);
+        }
+    }
+
+    /**
+     * Records that the {@code chains} of the response {@code id} can never be stored, because they
+     * can't be parsed, and must not be replayed.
+     */
+    public synchronized void recordPoisoned(int id, BitSet chains) {
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            recordChains(RECORD_POISONED, id, chains, entry.poisoned);
+        }
+    }
+
+    /**
+     * Hands the response {@code id}, recorded by this process, back to the journal once its
+     * recorder is done with it, so that any chains it didn't get to store are offered for replay
+     * by {@link #claimRecovered}.
+     */
+    public synchronized void release(int id) {
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            entry.recovered = true;
+        }
+    }
+
+    /**
+     * Returns the responses recovered from a previous process or released by this one that still
+     * have chains to be stored, and hands ownership of them to the caller, so they are returned
+     * only once.
+     */
+    public synchronized List<PendingResponse> claimRecovered() {
+        load();
+        List<PendingResponse> pending = new ArrayList<>();
+        for (Map.Entry<Integer, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().recovered && !entry.getValue().isComplete()) {
+                entry.getValue().recovered = false;
+                pending.add(new PendingResponse(entry.getKey(), entry.getValue()));
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Rewrites the journal without any of the responses whose chains have all been committed or
+     * poisoned. The file is deleted once nothing is left in it.
+     */
+    public synchronized void compact() {
+        load();
+        mEntries.values().removeIf(Entry::isComplete);
+        if (mEntries.isEmpty()) {
+            if (mFile.exists() && !mFile.delete()) {
+                Log.e(TAG, "Failed to delete " + mFile);
+            }
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            for (Map.Entry<Integer, Entry> entry : mEntries.entrySet()) {
+                Entry e = entry.getValue();
+                out.write(encodeRecord(RECORD_RESPONSE, ByteBuffer.allocate(12 + e.response.length)
+                        .putInt(entry.getKey()).putInt(e.secLevel).putInt(e.numChains)
+                        .put(e.response).array()));
+                out.write(encodeRanges(RECORD_COMMITTED, entry.getKey(), e.committed));
+                out.write(encodeRanges(RECORD_POISONED, entry.getKey(), e.poisoned));
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact the journal", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "Failed to replace " + mFile);
+            tmp.delete();
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        if (mFile.length() > MAX_FILE_SIZE) {
+            Log.e(TAG, "Journal is too large, discarding it");
+            mFile.delete();
+            return;
+        }
+        boolean torn = false;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+            while (buf.hasRemaining()) {
+                if (!readRecord(buf)) {
+                    torn = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the journal", e);
+            torn = true;
+        }
+        for (Entry entry : mEntries.values()) {
+            entry.recovered = true;
+        }
+        if (torn) {
+            // Anything appended after the damaged record would never be read back.
+            Log.w(TAG, "Dropping a damaged record from the end of the journal");
+            compact();
+        }
+    }
+
+    /**
+     * Reads one record into memory.
+     *
+     * @return false if the record is truncated or damaged.
+     */
+    private boolean readRecord(ByteBuffer buf) {
+        try {
+            int start = buf.position();
+            byte type = buf.get();
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining() - 4) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), start, 1 + 4 + length);
+            ByteBuffer payload = ByteBuffer.wrap(buf.array(), buf.position(), length).slice();
+            buf.position(buf.position() + length);
+            if ((int) crc.getValue() != buf.getInt()) {
+                return false;
+            }
+            int id = payload.getInt();
+            mNextId = Math.max(mNextId, id + 1);
+            if (type == RECORD_RESPONSE) {
+                int secLevel = payload.getInt();
+                int numChains = payload.getInt();
+                byte[] response = new byte[payload.remaining()];
+                payload.get(response);
+                mEntries.put(id, new Entry(secLevel, numChains, response));
+            } else if (type == RECORD_COMMITTED || type == RECORD_POISONED) {
+                int rangeStart = payload.getInt();
+                int rangeEnd = payload.getInt();
+                Entry entry = mEntries.get(id);
+                if (entry != null && rangeStart >= 0 && rangeStart < rangeEnd) {
+                    (type == RECORD_COMMITTED ? entry.committed : entry.poisoned)
+                            .set(rangeStart, rangeEnd);
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Appends a record for each run of consecutive {@code chains}, with a single fsync, and then
+     * sets them in {@code recorded}.
+     */
+    private void recordChains(byte type, int id, BitSet chains, BitSet recorded) {
+        if (chains.isEmpty()) {
+            return;
+        }
+        try {
+            appendRecords(encodeRanges(type, id, chains));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to the journal", e);
+        }
+        recorded.or(chains);
+    }
+
+    private boolean append(byte type, byte[] payload) {
+        try {
+            appendRecords(encodeRecord(type, payload));
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to the journal", e);
+            return false;
+        }
+    }
+
+    private void appendRecords(byte[] records) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile, true /* append */)) {
+            out.write(records);
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Encodes a record of {@code type} for each run of consecutive chains set in {@code chains}.
+     */
+    private static byte[] encodeRanges(byte type, int id, BitSet chains) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (int start = chains.nextSetBit(0); start >= 0; start = chains.nextSetBit(start)) {
+            int end = chains.nextClearBit(start);
+            records.write(encodeRecord(type, ByteBuffer.allocate(12)
+                    .putInt(id).putInt(start).putInt(end).array()));
+            start = end;
+        }
+        return records.toByteArray();
+    }
+
+    private static byte[] encodeRecord(byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_OVERHEAD + payload.length);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return record.toByteArray();
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import static java.lang.Math.min;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+
+/**
+ * Decides when to retry provisioning after it fails, so that a short outage is recovered from
+ * within minutes rather than at the next run of the periodic job, without every device hammering
+ * a server that is struggling.
+ *
+ * Failures are sorted into classes, each with its own initial delay and cap. The delay for the
+ * most recent class doubles with each consecutive failure of that class, up to the cap. Half of
+ * it is then jittered by an amount derived from the device's settings ID, which spreads the
+ * retries of a fleet that all failed during the same outage.
+ *
+ * The consecutive failure count of every class, and which class failed last, are packed into a
+ * single long and persisted in SharedPreferences. The counts of the classes which involve the
+ * server also tell ServerInterface when to reset the settings to their defaults, in case a bad
+ * push left them unable to reach it. They are kept apart from SettingsManager so that this reset
+ * does not reset the backoff too.
+ */
+public class RetryPolicy {
+    /** The server could not be reached in time, or at all. */
+    public static final int FAILURE_TIMEOUT = 0;
+    /** The server returned a 5xx error, or a response the app could not accept. */
+    public static final int FAILURE_SERVER_ERROR = 1;
+    /**
+     * The server rejected the request with a 4xx error, or the device's configuration left it
+     * unable to address the server at all.
+     */
+    public static final int FAILURE_CLIENT_ERROR = 2;
+    /** Keystore could not be reached, or failed on the binder side. */
+    public static final int FAILURE_BINDER = 3;
+    public static final int NUM_FAILURE_CLASSES = 4;
+
+    // A struggling server is given longer to recover than a flaky network, and a request the
+    // server rejected is unlikely to succeed until its configuration or the device's changes.
+    private static final Duration[] INITIAL_DELAYS = {
+            Duration.ofMinutes(1),
+            Duration.ofMinutes(5),
+            Duration.ofHours(1),
+            Duration.ofSeconds(30),
+    };
+    private static final Duration[] MAX_DELAYS = {
+            Duration.ofHours(1),
+            Duration.ofHours(6),
+            Duration.ofDays(1),
+            Duration.ofMinutes(30),
+    };
+
+    // Each class has an 8 bit saturating failure count, and the class that failed last plus one
+    // is stored above them, with zero meaning there is no failure to retry.
+    private static final int COUNT_BITS = 8;
+    private static final int MAX_COUNT = (1 << COUNT_BITS) - 1;
+    private static final int LAST_CLASS_SHIFT = COUNT_BITS * NUM_FAILURE_CLASSES;
+
+    private static final String KEY_STATE = "retry_state";
+    private static final String PREFERENCES_NAME = "com.android.remoteprovisioner.retry";
+
+    /**
+     * Returns the failure class for an HTTP response code other than OK.
+     */
+    public static int classifyResponseCode(int responseCode) {
+        return responseCode >= 500 ? FAILURE_SERVER_ERROR : FAILURE_CLIENT_ERROR;
+    }
+
+    /**
+     * Returns the failure class for an exception thrown while talking to the server. A URL that
+     * does not parse or a host that does not resolve will not fix itself with time, unlike a
+     * dropped connection.
+     */
+    public static int classifyException(IOException e) {
+        if (e instanceof MalformedURLException || e instanceof UnknownHostException) {
+            return FAILURE_CLIENT_ERROR;
+        }
+        return FAILURE_TIMEOUT;
+    }
+
+    /**
+     * Records a failure of {@code failureClass}.
+     */
+    public static synchronized void recordFailure(Context context, int failureClass) {
+        long state = getState(context);
+        int count = min(MAX_COUNT, getFailureCount(state, failureClass) + 1);
+        int shift = failureClass * COUNT_BITS;
+        state &= ~(((long) MAX_COUNT << shift) | (-1L << LAST_CLASS_SHIFT));
+        state |= ((long) count << shift) | ((long) (failureClass + 1) << LAST_CLASS_SHIFT);
+        setState(context, state);
+    }
+
+    /**
+     * Records that provisioning succeeded, which resets the backoff of every class.
+     */
+    public static synchronized void recordSuccess(Context context) {
+        if (getState(context) != 0) {
+            setState(context, 0);
+        }
+    }
+
+    /**
+     * Records that the server answered with a response the app could accept, which resets the
+     * counts of the classes which involve the server. The rest of the run may still fail, so the
+     * binder count and the class that failed last are kept.
+     */
+    public static synchronized void recordServerSuccess(Context context) {
+        long state = getState(context);
+        long serverCounts = ((long) MAX_COUNT << (FAILURE_TIMEOUT * COUNT_BITS))
+                | ((long) MAX_COUNT << (FAILURE_SERVER_ERROR * COUNT_BITS))
+                | ((long) MAX_COUNT << (FAILURE_CLIENT_ERROR * COUNT_BITS));
+        if ((state & serverCounts) != 0) {
+            setState(context, state & ~serverCounts);
+        }
+    }
+
+    /**
+     * Returns the number of consecutive failures of {@code failureClass}.
+     */
+    public static synchronized int getFailureCount(Context context, int failureClass) {
+        return getFailureCount(getState(context), failureClass);
+    }
+
+    /**
+     * Returns the number of consecutive failures to reach or get an answer out of the server,
+     * that is of every class but {@link #FAILURE_BINDER}, since it last answered.
+     */
+    public static synchronized int getServerFailureCount(Context context) {
+        long state = getState(context);
+        return getFailureCount(state, FAILURE_TIMEOUT)
+                + getFailureCount(state, FAILURE_SERVER_ERROR)
+                + getFailureCount(state, FAILURE_CLIENT_ERROR);
+    }
+
+    /**
+     * Returns how long to wait before retrying after the most recent failure, or null if
+     * provisioning hasn't failed since it last succeeded.
+     */
+    public static synchronized Duration getRetryDelay(Context context) {
+        long state = getState(context);
+        int failureClass = (int) (state >>> LAST_CLASS_SHIFT) - 1;
+        if (failureClass < 0 || failureClass >= NUM_FAILURE_CLASSES) {
+            return null;
+        }
+        int count = getFailureCount(state, failureClass);
+        long initialMs = INITIAL_DELAYS[failureClass].toMillis();
+        long maxMs = MAX_DELAYS[failureClass].toMillis();
+        // Stop doubling once the cap is reached, before the delay can overflow.
+        long delayMs = initialMs;
+        for (int i = 1; i < count && delayMs < maxMs; i++) {
+            delayMs *= 2;
+        }
+        delayMs = min(delayMs, maxMs);
+        double fraction = SettingsManager.getJitterFraction(context, count);
+        return Duration.ofMillis(delayMs / 2 + (long) (fraction * (delayMs / 2)));
+    }
+
+    private static int getFailureCount(long state, int failureClass) {
+        return (int) (state >>> (failureClass * COUNT_BITS)) & MAX_COUNT;
+    }
+
+    private static long getState(Context context) {
+        return getSharedPreferences(context).getLong(KEY_STATE, 0);
+    }
+
+    private static void setState(Context context, long state) {
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        editor.putLong(KEY_STATE, state);
+        editor.apply();
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
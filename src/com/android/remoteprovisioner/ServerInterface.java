@@ -23,18 +23,20 @@ import android.util.Log;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.List;
 
 /**
  * Provides convenience methods for interfacing with the remote provisioning server.
  */
 public class ServerInterface {
 
-    private static final int TIMEOUT_MS = 5000;
+    // After this many consecutive failures to reach or get an answer out of the server, the
+    // settings are reset to their defaults in case a bad push left them unable to reach it.
+    private static final int FAILURE_MAXIMUM = 5;
 
     private static final String TAG = "ServerInterface";
     private static final String GEEK_URL = ":fetchEekChain";
@@ -54,15 +56,15 @@ public class ServerInterface {
      * @return A List of byte arrays, where each array contains an entire DER-encoded certificate
      *                    chain for one attestation key pair.
      */
-    public static List<byte[]> requestSignedCertificates(Context context, byte[] csr,
-                                                         byte[] challenge) {
+    public static SignedCertificateChains requestSignedCertificates(Context context, byte[] csr,
+                                                                    byte[] challenge) {
         try {
             URL url = new URL(SettingsManager.getUrl(context) + CERTIFICATE_SIGNING_URL
                               + Base64.encodeToString(challenge, Base64.URL_SAFE));
             HttpURLConnection con = (HttpURLConnection) url.openConnection();
             con.setRequestMethod("POST");
             con.setDoOutput(true);
-            con.setConnectTimeout(TIMEOUT_MS);
+            con.setConnectTimeout((int) SettingsManager.getServerTimeout(context).toMillis());
 
             // May not be able to use try-with-resources here if the connection gets closed due to
             // the output stream being automatically closed.
@@ -71,26 +73,41 @@ public class ServerInterface {
             }
 
             if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                int failures = SettingsManager.incrementFailureCounter(context);
+                int failures = recordFailure(context,
+                        RetryPolicy.classifyResponseCode(con.getResponseCode()));
                 Log.e(TAG, "Server connection for signing failed, response code: "
                         + con.getResponseCode() + "\nRepeated failure count: " + failures);
                 return null;
             }
-            SettingsManager.clearFailureCounter(context);
-            BufferedInputStream inputStream = new BufferedInputStream(con.getInputStream());
-            ByteArrayOutputStream cborBytes = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int read = 0;
-            while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
-                cborBytes.write(buffer, 0, read);
+            int maxResponseBytes = SettingsManager.getMaxResponseBytes(context);
+            byte[] cborBytes = readResponse(con, maxResponseBytes);
+            if (cborBytes == null) {
+                int failures = recordFailure(context, RetryPolicy.FAILURE_SERVER_ERROR);
+                Log.e(TAG, "Signing response exceeds " + maxResponseBytes
+                        + " bytes.\nRepeated failure count: " + failures);
+                return null;
+            }
+            SignedCertificateChains certChains = CborUtils.parseSignedCertificateChains(cborBytes);
+            if (certChains == null) {
+                int failures = recordFailure(context, RetryPolicy.FAILURE_SERVER_ERROR);
+                Log.e(TAG, "Rejected the signing response.\nRepeated failure count: "
+                        + failures);
+                return null;
+            }
+            RetryPolicy.recordServerSuccess(context);
+            int uniqueBytes = 0;
+            for (int i = 0; i < certChains.size(); i++) {
+                uniqueBytes += certChains.getUniqueLength(i);
             }
-            return CborUtils.parseSignedCertificates(cborBytes.toByteArray());
+            NetworkByteEstimator.recordSignCall(context, certChains.size(), csr.length,
+                    cborBytes.length, uniqueBytes);
+            return certChains;
         } catch (SocketTimeoutException e) {
-            SettingsManager.incrementFailureCounter(context);
+            recordFailure(context, RetryPolicy.FAILURE_TIMEOUT);
             Log.e(TAG, "Server timed out", e);
             return null;
         } catch (IOException e) {
-            SettingsManager.incrementFailureCounter(context);
+            recordFailure(context, RetryPolicy.classifyException(e));
             Log.e(TAG, "Failed to request signed certificates from the server", e);
             return null;
         }
@@ -113,7 +130,7 @@ public class ServerInterface {
             URL url = new URL(SettingsManager.getUrl(context) + GEEK_URL);
             HttpURLConnection con = (HttpURLConnection) url.openConnection();
             con.setRequestMethod("POST");
-            con.setConnectTimeout(TIMEOUT_MS);
+            con.setConnectTimeout((int) SettingsManager.getServerTimeout(context).toMillis());
             con.setDoOutput(true);
 
             byte[] config = CborUtils.buildProvisioningInfo(context);
@@ -122,30 +139,99 @@ public class ServerInterface {
             }
 
             if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                int failures = SettingsManager.incrementFailureCounter(context);
+                int failures = recordFailure(context,
+                        RetryPolicy.classifyResponseCode(con.getResponseCode()));
                 Log.e(TAG, "Server connection for GEEK failed, response code: "
                         + con.getResponseCode() + "\nRepeated failure count: " + failures);
                 return null;
             }
-            SettingsManager.clearFailureCounter(context);
-
-            BufferedInputStream inputStream = new BufferedInputStream(con.getInputStream());
-            ByteArrayOutputStream cborBytes = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int read = 0;
-            while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
-                cborBytes.write(buffer, 0, read);
+
+            int maxResponseBytes = SettingsManager.getMaxResponseBytes(context);
+            byte[] cborBytes = readResponse(con, maxResponseBytes);
+            if (cborBytes == null) {
+                int failures = recordFailure(context, RetryPolicy.FAILURE_SERVER_ERROR);
+                Log.e(TAG, "GEEK response exceeds " + maxResponseBytes
+                        + " bytes.\nRepeated failure count: " + failures);
+                return null;
+            }
+            GeekResponse resp = CborUtils.parseGeekResponse(cborBytes);
+            if (resp == null) {
+                int failures = recordFailure(context, RetryPolicy.FAILURE_SERVER_ERROR);
+                Log.e(TAG, "Rejected the GEEK response.\nRepeated failure count: " + failures);
+                return null;
             }
-            inputStream.close();
-            return CborUtils.parseGeekResponse(cborBytes.toByteArray());
+            RetryPolicy.recordServerSuccess(context);
+            NetworkByteEstimator.recordGeekCall(context, config.length, cborBytes.length);
+            return resp;
         } catch (SocketTimeoutException e) {
-            SettingsManager.incrementFailureCounter(context);
+            recordFailure(context, RetryPolicy.FAILURE_TIMEOUT);
             Log.e(TAG, "Server timed out", e);
         } catch (IOException e) {
             // This exception will trigger on a completely malformed URL.
-            SettingsManager.incrementFailureCounter(context);
+            recordFailure(context, RetryPolicy.classifyException(e));
             Log.e(TAG, "Failed to fetch GEEK from the servers.", e);
         }
         return null;
     }
+
+    /**
+     * Records a failure of {@code failureClass} in RetryPolicy. Once the server has failed
+     * {@link #FAILURE_MAXIMUM} + 1 times in a row, the settings are reset to their defaults, since
+     * the server may be unreachable because a bad push stored an incorrect URL or timeout. This
+     * happens once per streak of failures, which only ends when the server answers again, so that
+     * a long outage doesn't keep clearing settings the server may have just pushed.
+     *
+     * @return the number of consecutive server failures, including this one.
+     */
+    private static synchronized int recordFailure(Context context, int failureClass) {
+        RetryPolicy.recordFailure(context, failureClass);
+        int failures = RetryPolicy.getServerFailureCount(context);
+        if (failures == FAILURE_MAXIMUM + 1) {
+            Log.e(TAG, "Too many failures, resetting defaults.");
+            SettingsManager.clearPreferences(context);
+        }
+        return failures;
+    }
+
+    /**
+     * Reads the body of the response to {@code con}, as {@link #readResponse(InputStream, long,
+     * int)} does.
+     */
+    private static byte[] readResponse(HttpURLConnection con, int maxResponseBytes)
+            throws IOException {
+        long declaredLength = con.getContentLengthLong();
+        if (declaredLength > maxResponseBytes) {
+            return null;
+        }
+        try (InputStream inputStream = con.getInputStream()) {
+            return readResponse(inputStream, declaredLength, maxResponseBytes);
+        }
+    }
+
+    /**
+     * Reads the body of a response, giving up as soon as it is known to be larger than
+     * {@code maxResponseBytes} so that a misbehaving server can't make the app buffer an arbitrary
+     * amount of data.
+     *
+     * @param declaredLength The length of the body given by the server, or -1 if it is unknown.
+     * @return the response body, or null if and only if it is too large.
+     */
+    public static byte[] readResponse(InputStream in, long declaredLength, int maxResponseBytes)
+            throws IOException {
+        if (declaredLength > maxResponseBytes) {
+            return null;
+        }
+        BufferedInputStream inputStream = new BufferedInputStream(in);
+        ByteArrayOutputStream cborBytes = new ByteArrayOutputStream(
+                declaredLength > 0 ? (int) declaredLength : 1024);
+        byte[] buffer = new byte[1024];
+        int read = 0;
+        while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            if (cborBytes.size() + read > maxResponseBytes) {
+                return null;
+            }
+            cborBytes.write(buffer, 0, read);
+        }
+        return cborBytes.toByteArray();
+    }
 }
@@ -21,6 +21,7 @@ import android.content.SharedPreferences;
 import android.util.Log;
 
 import java.time.Duration;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -32,43 +33,100 @@ public class SettingsManager {
 
     public static final int ID_UPPER_BOUND = 1000000;
     public static final int EXTRA_SIGNED_KEYS_AVAILABLE_DEFAULT = 6;
+    // The most unassigned signed keys the app will aim to keep in a pool.
+    public static final int EXTRA_SIGNED_KEYS_MAX = 100;
     // Check for expiring certs in the next 3 days
     public static final int EXPIRING_BY_MS_DEFAULT = 1000 * 60 * 60 * 24 * 3;
     public static final String URL_DEFAULT = "https://remoteprovisioning.googleapis.com/v1";
 
+    // Tuning values the server may push to adjust load on itself and on the device. Values outside
+    // of these bounds are ignored by the parser.
+    public static final int CSR_BATCH_SIZE_DEFAULT = 20;
+    public static final int CSR_BATCH_SIZE_MIN = 1;
+    public static final int CSR_BATCH_SIZE_MAX = 100;
+    public static final int KEY_GENERATION_PAUSE_MS_DEFAULT = 1000;
+    public static final int KEY_GENERATION_PAUSE_MS_MIN = 0;
+    public static final int KEY_GENERATION_PAUSE_MS_MAX = 1000 * 10;
+    public static final int SERVER_TIMEOUT_MS_DEFAULT = 5000;
+    public static final int SERVER_TIMEOUT_MS_MIN = 1000;
+    public static final int SERVER_TIMEOUT_MS_MAX = 1000 * 60;
+    // The periodic job is scheduled by when keys expire, so the scheduler period only bounds how
+    // long it may go without running. The job also picks up the device config, so by default it
+    // still runs at least daily.
+    public static final int SCHEDULER_PERIOD_HOURS_DEFAULT = 24;
+    public static final int SCHEDULER_PERIOD_HOURS_MIN = 1;
+    public static final int SCHEDULER_PERIOD_HOURS_MAX = 24 * 7;
+    // Each device delays its periodic job by a fixed offset within this window, so that devices
+    // which boot together, for instance after an OTA, don't all call the server together.
+    public static final int SCHEDULE_SPREAD_MINUTES_DEFAULT = 60 * 4;
+    public static final int SCHEDULE_SPREAD_MINUTES_MIN = 0;
+    public static final int SCHEDULE_SPREAD_MINUTES_MAX = 60 * 24;
+
+    // How likely the pool should be to cover the demand forecast over the forecast horizon, as a
+    // percentage.
+    public static final int DEMAND_CONFIDENCE_PERCENT_DEFAULT = 95;
+    public static final int DEMAND_CONFIDENCE_PERCENT_MIN = 50;
+    public static final int DEMAND_CONFIDENCE_PERCENT_MAX = 99;
+
+    // The largest response body the app will read from the server, in KiB. The default is far
+    // larger than any legitimate response, even for the biggest CSR batches.
+    public static final int MAX_RESPONSE_KB_DEFAULT = 512;
+    public static final int MAX_RESPONSE_KB_MIN = 64;
+    public static final int MAX_RESPONSE_KB_MAX = 1024 * 4;
+
+    // Returned for a pool watermark that has not been set, in which case PoolWatermarks derives
+    // it from the forecast demand.
+    public static final int WATERMARK_UNSET = -1;
+
+    private static final String KEY_CSR_BATCH_SIZE = "csr_batch_size";
+    private static final String KEY_DEMAND_CONFIDENCE = "demand_confidence_percent";
     private static final String KEY_EXPIRING_BY = "expiring_by";
     private static final String KEY_EXTRA_KEYS = "extra_keys";
     private static final String KEY_ID = "settings_id";
-    private static final String KEY_FAILURE_COUNTER = "failure_counter";
+    private static final String KEY_KEY_GENERATION_PAUSE = "key_generation_pause_ms";
+    private static final String KEY_MAX_RESPONSE_SIZE = "max_response_kb";
+    private static final String KEY_SCHEDULER_PERIOD = "scheduler_period_ms";
+    private static final String KEY_SCHEDULE_SPREAD = "schedule_spread_ms";
+    private static final String KEY_SERVER_TIMEOUT = "server_timeout_ms";
+    private static final String KEY_HIGH_WATERMARK = "high_watermark_";
+    private static final String KEY_LOW_WATERMARK = "low_watermark_";
     private static final String KEY_URL = "url";
     private static final String PREFERENCES_NAME = "com.android.remoteprovisioner.preferences";
     private static final String TAG = "RemoteProvisionerSettings";
 
+    private static final double GOLDEN_RATIO = (1 + Math.sqrt(5)) / 2;
+
     /**
      * Generates a random ID for the use of gradual ramp up of remote provisioning.
      */
     public static void generateAndSetId(Context context) {
-        SharedPreferences sharedPref =
-                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        if (sharedPref.contains(KEY_ID)) {
-            // ID is already set, don't rotate it.
-            return;
+        synchronized (SettingsManager.class) {
+            SharedPreferences sharedPref =
+                    context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            if (sharedPref.contains(KEY_ID)) {
+                // ID is already set, don't rotate it.
+                return;
+            }
+            Log.i(TAG, "Setting ID");
+            Random rand = new Random();
+            SharedPreferences.Editor editor = sharedPref.edit();
+            editor.putInt(KEY_ID, rand.nextInt(ID_UPPER_BOUND));
+            editor.apply();
         }
-        Log.i(TAG, "Setting ID");
-        Random rand = new Random();
-        SharedPreferences.Editor editor = sharedPref.edit();
-        editor.putInt(KEY_ID, rand.nextInt(ID_UPPER_BOUND));
-        editor.apply();
+        // Outside of the lock, since building the provisioning information takes its own lock
+        // first and then reads the ID.
+        CborUtils.invalidateProvisioningInfo();
     }
 
     /**
-     * Fetches the generated ID.
+     * Fetches the generated ID, generating it first if it hasn't been yet, so that the same ID is
+     * returned every time.
      */
     public static int getId(Context context) {
+        generateAndSetId(context);
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        Random rand = new Random();
-        return sharedPref.getInt(KEY_ID, rand.nextInt(ID_UPPER_BOUND) /* defaultValue */);
+        return sharedPref.getInt(KEY_ID, 0 /* defaultValue */);
     }
 
     /**
@@ -108,6 +166,147 @@ public class SettingsManager {
         return wereUpdatesMade;
     }
 
+    /**
+     * Sets the performance tuning values based on what was fetched from the server. As with
+     * {@link #setDeviceConfig}, any parameter the server did not send is left unchanged.
+     *
+     * @param csrBatchSize The maximum number of keys to certify in a single CSR, or
+     *                     {@link GeekResponse#NO_CSR_BATCH_SIZE_UPDATE}.
+     * @param keyGenerationPause How long to wait between key pair generations.
+     * @param serverTimeout How long to wait when connecting to the provisioning server.
+     * @param schedulerPeriod The longest the periodic provisioning job may go without running.
+     * @param scheduleSpread The window across which devices spread their periodic jobs.
+     * @param poolWatermarks The low and high watermarks for the number of unassigned signed keys
+     *                       in the pool, keyed by security level. When the pool drops below the
+     *                       low watermark, it is refilled up to the high one. The parser has
+     *                       already dropped any pair that is out of bounds.
+     * @return {@code true} if any settings were updated.
+     */
+    public static boolean setPerformanceConfig(Context context, int csrBatchSize,
+                                               Duration keyGenerationPause,
+                                               Duration serverTimeout,
+                                               Duration schedulerPeriod,
+                                               Duration scheduleSpread,
+                                               Map<Integer, int[]> poolWatermarks) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPref.edit();
+        boolean wereUpdatesMade = false;
+        if (csrBatchSize != GeekResponse.NO_CSR_BATCH_SIZE_UPDATE
+                && sharedPref.getInt(KEY_CSR_BATCH_SIZE, -1) != csrBatchSize) {
+            editor.putInt(KEY_CSR_BATCH_SIZE, csrBatchSize);
+            wereUpdatesMade = true;
+        }
+        if (keyGenerationPause != null
+                && sharedPref.getLong(KEY_KEY_GENERATION_PAUSE, -1)
+                        != keyGenerationPause.toMillis()) {
+            editor.putLong(KEY_KEY_GENERATION_PAUSE, keyGenerationPause.toMillis());
+            wereUpdatesMade = true;
+        }
+        if (serverTimeout != null
+                && sharedPref.getLong(KEY_SERVER_TIMEOUT, -1) != serverTimeout.toMillis()) {
+            editor.putLong(KEY_SERVER_TIMEOUT, serverTimeout.toMillis());
+            wereUpdatesMade = true;
+        }
+        if (schedulerPeriod != null
+                && sharedPref.getLong(KEY_SCHEDULER_PERIOD, -1) != schedulerPeriod.toMillis()) {
+            editor.putLong(KEY_SCHEDULER_PERIOD, schedulerPeriod.toMillis());
+            wereUpdatesMade = true;
+        }
+        if (scheduleSpread != null
+                && sharedPref.getLong(KEY_SCHEDULE_SPREAD, -1) != scheduleSpread.toMillis()) {
+            editor.putLong(KEY_SCHEDULE_SPREAD, scheduleSpread.toMillis());
+            wereUpdatesMade = true;
+        }
+        if (poolWatermarks != null) {
+            for (Map.Entry<Integer, int[]> watermarks : poolWatermarks.entrySet()) {
+                int secLevel = watermarks.getKey();
+                int low = watermarks.getValue()[0];
+                int high = watermarks.getValue()[1];
+                if (sharedPref.getInt(KEY_LOW_WATERMARK + secLevel, WATERMARK_UNSET) != low
+                        || sharedPref.getInt(KEY_HIGH_WATERMARK + secLevel, WATERMARK_UNSET)
+                                != high) {
+                    editor.putInt(KEY_LOW_WATERMARK + secLevel, low);
+                    editor.putInt(KEY_HIGH_WATERMARK + secLevel, high);
+                    wereUpdatesMade = true;
+                }
+            }
+        }
+        if (wereUpdatesMade) {
+            editor.apply();
+        }
+        return wereUpdatesMade;
+    }
+
+    /**
+     * Gets the setting for the maximum number of keys to certify in a single CSR.
+     */
+    public static int getCsrBatchSize(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return sharedPref.getInt(KEY_CSR_BATCH_SIZE, CSR_BATCH_SIZE_DEFAULT);
+    }
+
+    /**
+     * Gets the setting for how long to wait in between key pair generations.
+     */
+    public static Duration getKeyGenerationPause(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return Duration.ofMillis(
+                sharedPref.getLong(KEY_KEY_GENERATION_PAUSE, KEY_GENERATION_PAUSE_MS_DEFAULT));
+    }
+
+    /**
+     * Gets the setting for how long to wait when connecting to the provisioning server.
+     */
+    public static Duration getServerTimeout(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return Duration.ofMillis(sharedPref.getLong(KEY_SERVER_TIMEOUT, SERVER_TIMEOUT_MS_DEFAULT));
+    }
+
+    /**
+     * Gets the setting for the longest the periodic provisioning job may go without running.
+     */
+    public static Duration getSchedulerPeriod(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return Duration.ofMillis(sharedPref.getLong(KEY_SCHEDULER_PERIOD,
+                Duration.ofHours(SCHEDULER_PERIOD_HOURS_DEFAULT).toMillis()));
+    }
+
+    /**
+     * Gets the setting for the window across which devices spread their periodic jobs.
+     */
+    public static Duration getScheduleSpread(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return Duration.ofMillis(sharedPref.getLong(KEY_SCHEDULE_SPREAD,
+                Duration.ofMinutes(SCHEDULE_SPREAD_MINUTES_DEFAULT).toMillis()));
+    }
+
+    /**
+     * Gets this device's offset within the schedule spread window. The offset is derived from the
+     * generated ID, so it is the same every time the job is scheduled, but it is scrambled rather
+     * than proportional to the ID so that devices in the same ramp up range are still spread
+     * across the whole window.
+     */
+    public static Duration getScheduleJitter(Context context) {
+        return Duration.ofMillis(
+                (long) (getJitterFraction(context, 0) * getScheduleSpread(context).toMillis()));
+    }
+
+    /**
+     * Returns a number in [0, 1) derived from the generated ID, for spreading the devices of the
+     * fleet over some interval. Different values of {@code salt} give different numbers for the
+     * same device.
+     */
+    public static double getJitterFraction(Context context, int salt) {
+        // Multiples of the golden ratio modulo 1 are close to evenly spread for any range of IDs.
+        return (((long) getId(context) + salt) * GOLDEN_RATIO) % 1.0;
+    }
+
     /**
      * Gets the setting for how many extra keys should be kept signed and available in KeyStore.
      */
@@ -118,71 +317,115 @@ public class SettingsManager {
     }
 
     /**
-     * Gets the setting for how far into the future the provisioner should check for expiring keys.
+     * Sets the confidence, as a percentage, with which the pool should cover the demand forecast
+     * by {@link DemandForecaster} over its forecast horizon.
+     *
+     * @return {@code false} if {@code percent} is out of bounds, in which case it is ignored.
      */
-    public static Duration getExpiringBy(Context context) {
+    public static boolean setDemandConfidence(Context context, int percent) {
+        if (percent < DEMAND_CONFIDENCE_PERCENT_MIN || percent > DEMAND_CONFIDENCE_PERCENT_MAX) {
+            Log.w(TAG, "Ignoring out of bounds demand confidence: " + percent);
+            return false;
+        }
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        return Duration.ofMillis(sharedPref.getLong(KEY_EXPIRING_BY, EXPIRING_BY_MS_DEFAULT));
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putInt(KEY_DEMAND_CONFIDENCE, percent);
+        editor.apply();
+        return true;
     }
 
     /**
-     * Gets the setting for what base URL the provisioner should use to talk to provisioning
-     * servers.
+     * Gets the setting for the confidence, as a percentage, with which the pool should cover the
+     * forecast demand.
      */
-    public static String getUrl(Context context) {
+    public static int getDemandConfidence(Context context) {
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        return sharedPref.getString(KEY_URL, URL_DEFAULT);
+        return sharedPref.getInt(KEY_DEMAND_CONFIDENCE, DEMAND_CONFIDENCE_PERCENT_DEFAULT);
     }
 
     /**
-     * Increments the failure counter. This is intended to be used when reaching the server fails
-     * for any reason so that the app logic can decide if the preferences should be reset to
-     * defaults in the event that a bad push stored an incorrect URL string.
+     * Sets the largest response body, in KiB, that the app will read from the server.
      *
-     * @return the current failure counter after incrementing.
+     * @return {@code false} if {@code kilobytes} is out of bounds, in which case it is ignored.
      */
-    public static int incrementFailureCounter(Context context) {
+    public static boolean setMaxResponseSize(Context context, int kilobytes) {
+        if (kilobytes < MAX_RESPONSE_KB_MIN || kilobytes > MAX_RESPONSE_KB_MAX) {
+            Log.w(TAG, "Ignoring out of bounds maximum response size: " + kilobytes);
+            return false;
+        }
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = sharedPref.edit();
-        int failures = sharedPref.getInt(KEY_FAILURE_COUNTER, 0 /* defaultValue */);
-        editor.putInt(KEY_FAILURE_COUNTER, ++failures);
+        editor.putInt(KEY_MAX_RESPONSE_SIZE, kilobytes);
         editor.apply();
-        return failures;
+        return true;
     }
 
     /**
-     * Gets the current failure counter.
+     * Gets the setting for the largest response body, in bytes, that the app will read from the
+     * server.
      */
-    public static int getFailureCounter(Context context) {
+    public static int getMaxResponseBytes(Context context) {
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        return sharedPref.getInt(KEY_FAILURE_COUNTER, 0 /* defaultValue */);
+        return sharedPref.getInt(KEY_MAX_RESPONSE_SIZE, MAX_RESPONSE_KB_DEFAULT) * 1024;
     }
 
     /**
-     * Resets the failure counter to {@code 0}.
+     * Gets the setting for the number of unassigned keys below which the pool of {@code secLevel}
+     * is refilled, or {@link #WATERMARK_UNSET}.
      */
-    public static void clearFailureCounter(Context context) {
+    public static int getLowWatermark(Context context, int secLevel) {
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        if (sharedPref.getInt(KEY_FAILURE_COUNTER, 0) != 0) {
-            SharedPreferences.Editor editor = sharedPref.edit();
-            editor.putInt(KEY_FAILURE_COUNTER, 0);
-            editor.apply();
-        }
+        return sharedPref.getInt(KEY_LOW_WATERMARK + secLevel, WATERMARK_UNSET);
     }
 
     /**
-     * Clears all preferences, thus restoring the defaults.
+     * Gets the setting for the number of unassigned keys the pool of {@code secLevel} is refilled
+     * up to, or {@link #WATERMARK_UNSET}.
      */
-    public static void clearPreferences(Context context) {
+    public static int getHighWatermark(Context context, int secLevel) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return sharedPref.getInt(KEY_HIGH_WATERMARK + secLevel, WATERMARK_UNSET);
+    }
+
+    /**
+     * Gets the setting for how far into the future the provisioner should check for expiring keys.
+     */
+    public static Duration getExpiringBy(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return Duration.ofMillis(sharedPref.getLong(KEY_EXPIRING_BY, EXPIRING_BY_MS_DEFAULT));
+    }
+
+    /**
+     * Gets the setting for what base URL the provisioner should use to talk to provisioning
+     * servers.
+     */
+    public static String getUrl(Context context) {
+        SharedPreferences sharedPref =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return sharedPref.getString(KEY_URL, URL_DEFAULT);
+    }
+
+    /**
+     * Clears all preferences, thus restoring the defaults. The ID is kept, so that a reset does
+     * not move the device to a new slot in the schedule and retry spreads, nor to a new bucket of
+     * the gradual ramp up, both of which are derived from it.
+     */
+    public static synchronized void clearPreferences(Context context) {
         SharedPreferences sharedPref =
                 context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = sharedPref.edit();
         editor.clear();
+        if (sharedPref.contains(KEY_ID)) {
+            // The editor applies clear() before any put, whatever order they are called in.
+            editor.putInt(KEY_ID, sharedPref.getInt(KEY_ID, 0 /* defaultValue */));
+        }
         editor.apply();
     }
 }
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A read-only view over the certificate chains contained in a signCertificates response. Rather
+ * than copying the shared certificates onto the end of every unique chain up front, this class
+ * only records where each unique portion and the single shared suffix live in the original
+ * response buffer.
+ *
+ * Each call to {@link #get} assembles one complete DER-encoded chain (unique certificates followed
+ * by the shared certificates) into a freshly allocated array of exactly the right size, so callers
+ * that iterate the chains only ever hold one materialized chain at a time. Callers which can work
+ * directly on the response buffer may use the offset accessors instead and avoid the copy.
+ */
+public class SignedCertificateChains extends AbstractList<byte[]> implements RandomAccess {
+    private final byte[] mBuffer;
+    private final int mSharedOffset;
+    private final int mSharedLength;
+    private final int[] mUniqueOffsets;
+    private final int[] mUniqueLengths;
+
+    /**
+     * @param buffer the encoded server response the offsets refer to.
+     * @param sharedOffset the offset of the DER-encoded shared certificates in {@code buffer}.
+     * @param sharedLength the length of the shared certificates.
+     * @param uniqueOffsets the offset of each chain's unique DER-encoded certificates.
+     * @param uniqueLengths the length of each chain's unique certificates.
+     */
+    public SignedCertificateChains(byte[] buffer, int sharedOffset, int sharedLength,
+                                   int[] uniqueOffsets, int[] uniqueLengths) {
+        if (uniqueOffsets.length != uniqueLengths.length) {
+            throw new IllegalArgumentException("Offsets and lengths must be the same size");
+        }
+        mBuffer = buffer;
+        mSharedOffset = sharedOffset;
+        mSharedLength = sharedLength;
+        mUniqueOffsets = uniqueOffsets;
+        mUniqueLengths = uniqueLengths;
+    }
+
+    @Override
+    public int size() {
+        return mUniqueOffsets.length;
+    }
+
+    /**
+     * Returns the entire DER-encoded certificate chain at {@code index}, ordered from leaf to
+     * root. A new array is returned on every call.
+     */
+    @Override
+    public byte[] get(int index) {
+        byte[] chain = new byte[getChainLength(index)];
+        // DER encoding specifies certificate chains ordered from leaf to root.
+        System.arraycopy(mBuffer, mUniqueOffsets[index], chain, 0, mUniqueLengths[index]);
+        System.arraycopy(mBuffer, mSharedOffset, chain, mUniqueLengths[index], mSharedLength);
+        return chain;
+    }
+
+    /**
+     * Returns the length of the complete certificate chain at {@code index}.
+     */
+    public int getChainLength(int index) {
+        return mUniqueLengths[index] + mSharedLength;
+    }
+
+    /**
+     * Returns the response buffer that all offsets refer to. It must not be modified.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the offset of the unique, leaf-side certificates of the chain at {@code index}.
+     */
+    public int getUniqueOffset(int index) {
+        return mUniqueOffsets[index];
+    }
+
+    /**
+     * Returns the length of the unique, leaf-side certificates of the chain at {@code index}.
+     */
+    public int getUniqueLength(int index) {
+        return mUniqueLengths[index];
+    }
+
+    /**
+     * Returns the offset of the certificates shared by every chain in the response.
+     */
+    public int getSharedOffset() {
+        return mSharedOffset;
+    }
+
+    /**
+     * Returns the length of the certificates shared by every chain in the response.
+     */
+    public int getSharedLength() {
+        return mSharedLength;
+    }
+}
@@ -23,17 +23,7 @@ import android.os.RemoteException;
 import android.security.remoteprovisioning.IRemoteProvisioning;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.util.List;
-
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborEncoder;
 import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.builder.ArrayBuilder;
-import co.nstant.in.cbor.model.Array;
-import co.nstant.in.cbor.model.DataItem;
 
 /**
  * Provides convenience methods for interfacing with the android.security.remoteprovisioning system
@@ -44,24 +34,45 @@ public class SystemInterface {
 
     private static final String TAG = "SystemInterface";
 
-    private static byte[] makeProtectedHeaders() throws CborException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        new CborEncoder(baos).encode(new CborBuilder()
-                .addMap()
-                    .put(1, 5)
-                .end()
-                .build());
-        return baos.toByteArray();
-    }
+    // The COSE_Mac0 protected headers never change: {1 : 5}, i.e. {alg : HMAC 256/256}.
+    private static final byte[] PROTECTED_HEADERS = new byte[] {(byte) 0xA1, 0x01, 0x05};
+    private static final int COSE_MAC0_ENTRIES = 4;
 
-    private static byte[] encodePayload(List<DataItem> keys) throws CborException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ArrayBuilder<CborBuilder> builder = new CborBuilder().addArray();
-        for (int i = 1; i < keys.size(); i++) {
-            builder = builder.add(keys.get(i));
+    /**
+     * Wraps the output of the generateCsr binder call, an array holding the MAC tag followed by
+     * each of the MAC'ed public keys, in a COSE_Mac0 structure. The item boundaries are found with
+     * a single scan, and the keys and tag are copied into the result without being decoded.
+     */
+    private static byte[] buildCoseMac0(byte[] macedPublicKeys) throws CborException {
+        CborReader reader = new CborReader(macedPublicKeys);
+        int entries = reader.readArrayHeader();
+        if (entries < 1) {
+            throw new CborException("Keystore returned an empty array instead of a MAC tag");
+        }
+        int tagOffset = reader.getPosition();
+        reader.skipItem();
+        int tagLength = reader.getPosition() - tagOffset;
+        int keysOffset = reader.getPosition();
+        for (int i = 1; i < entries; i++) {
+            reader.skipItem();
         }
-        new CborEncoder(baos).encode(builder.end().build());
-        return baos.toByteArray();
+        int keysLength = reader.getPosition() - keysOffset;
+        int numKeys = entries - 1;
+        int payloadLength = CborWriter.headerSize(numKeys) + keysLength;
+        int size = CborWriter.headerSize(COSE_MAC0_ENTRIES)
+                + CborWriter.stringSize(PROTECTED_HEADERS.length)
+                + CborWriter.headerSize(0)
+                + CborWriter.stringSize(payloadLength)
+                + tagLength;
+        return new CborWriter(size)
+                .writeArrayHeader(COSE_MAC0_ENTRIES)
+                    .writeByteString(PROTECTED_HEADERS)
+                    .writeMapHeader(0)                       // unprotected headers
+                    .writeByteStringHeader(payloadLength)    // payload: the array of keys
+                        .writeArrayHeader(numKeys)
+                        .writeRaw(macedPublicKeys, keysOffset, keysLength)
+                    .writeRaw(macedPublicKeys, tagOffset, tagLength)
+                .toByteArray();
     }
 
     /**
@@ -72,7 +83,6 @@ public class SystemInterface {
             byte[] geekChain, byte[] challenge, ProtectedData protectedData, DeviceInfo deviceInfo,
             @NonNull IRemoteProvisioning binder) {
         try {
-            ProtectedData dataBundle = new ProtectedData();
             byte[] macedPublicKeys = binder.generateCsr(testMode,
                                                         numKeys,
                                                         geekChain,
@@ -84,20 +94,7 @@ public class SystemInterface {
                 Log.e(TAG, "Keystore didn't generate a CSR successfully.");
                 return null;
             }
-            ByteArrayInputStream bais = new ByteArrayInputStream(macedPublicKeys);
-            List<DataItem> dataItems = new CborDecoder(bais).decode();
-            List<DataItem> macInfo = ((Array) dataItems.get(0)).getDataItems();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            new CborEncoder(baos).encode(new CborBuilder()
-                    .addArray()
-                        .add(makeProtectedHeaders())
-                        .addMap() //unprotected headers
-                            .end()
-                        .add(encodePayload(macInfo))
-                        .add(macInfo.get(0))
-                        .end()
-                    .build());
-            return baos.toByteArray();
+            return buildCoseMac0(macedPublicKeys);
         } catch (RemoteException e) {
             Log.e(TAG, "Failed to generate CSR blob", e);
             return null;
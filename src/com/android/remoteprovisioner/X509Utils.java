@@ -25,7 +25,11 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.cert.CertificateParsingException;
 import java.security.interfaces.ECPublicKey;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 
 /**
@@ -35,6 +39,17 @@ public class X509Utils {
 
     private static final String TAG = "RemoteProvisionerX509Utils";
 
+    // The content octets of the id-ecPublicKey (1.2.840.10045.2.1) and prime256v1
+    // (1.2.840.10045.3.1.7) object identifiers.
+    private static final byte[] EC_PUBLIC_KEY_OID =
+            new byte[] {0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01};
+    private static final byte[] P256_OID =
+            new byte[] {0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07};
+    private static final int UNCOMPRESSED_POINT_FORMAT = 0x04;
+    // YYMMDDHHMMSSZ and YYYYMMDDHHMMSSZ respectively.
+    private static final int UTC_TIME_LENGTH = 13;
+    private static final int GENERALIZED_TIME_LENGTH = 15;
+
     /**
      * Takes a byte array composed of DER encoded certificates and returns the X.509 certificates
      * contained within as an X509Certificate array.
@@ -47,6 +62,181 @@ public class X509Utils {
         return certs.toArray(new X509Certificate[certs.size()]);
     }
 
+    /**
+     * Scans a chain of DER encoded certificates, ordered from leaf to root, and locates the leaf's
+     * notAfter date and ECDSA-P256 public key without building any X509Certificate objects. The
+     * remainder of the chain is only split by its tag-length-value structure to make sure it is
+     * well formed; none of it is decoded.
+     *
+     * Only certificates in the form issued by the provisioning server are understood. Callers
+     * should fall back to {@link #formatX509Certs} if this returns null.
+     *
+     * @return the located leaf fields, or null if the chain could not be scanned.
+     */
+    public static LeafCertificate scanLeafCertificate(byte[] certChain) {
+        return scanLeafCertificate(certChain, 0 /* offset */, certChain.length);
+    }
+
+    /**
+     * Scans a chain of DER encoded certificates held in {@code length} bytes of {@code buffer},
+     * starting at {@code offset}, as described in {@link #scanLeafCertificate(byte[])}. The
+     * offsets in the returned LeafCertificate refer to {@code buffer}.
+     */
+    public static LeafCertificate scanLeafCertificate(byte[] buffer, int offset, int length) {
+        try {
+            DerReader reader = new DerReader(buffer, offset, length);
+            int leafOffset = reader.getPosition();
+            int leafEnd = reader.readHeader(DerReader.TAG_SEQUENCE) + reader.getPosition();
+            int tbsEnd = readToValidity(reader);
+            reader.readHeader(DerReader.TAG_SEQUENCE);              // validity
+            readTime(reader);                                       // notBefore
+            long notAfter = readTime(reader);
+            reader.skipValue(DerReader.TAG_SEQUENCE);               // subject
+            int publicKeyOffset = readP256PublicKeyOffset(reader);
+            if (reader.getPosition() > tbsEnd || tbsEnd > leafEnd) {
+                throw new CertificateParsingException("TBSCertificate overruns its bounds");
+            }
+            reader.skip(leafEnd - reader.getPosition());
+            while (reader.hasRemaining()) {
+                reader.skipValue(DerReader.TAG_SEQUENCE);
+            }
+            return new LeafCertificate(buffer, leafOffset, leafEnd - leafOffset, notAfter,
+                                       publicKeyOffset);
+        } catch (CertificateParsingException e) {
+            Log.w(TAG, "Unable to scan certificate chain: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copies the ECDSA-P256 public key of a DER encoded certificate into {@code dest}, formatted
+     * as by {@link #getAndFormatRawPublicKey}. The uncompressed point is read directly out of the
+     * SubjectPublicKeyInfo, so unlike {@link #getAndFormatRawPublicKey} nothing is allocated and
+     * no security provider is involved.
+     *
+     * @param encodedCert the DER encoded certificate.
+     * @param dest the buffer to copy the {@link LeafCertificate#RAW_PUBLIC_KEY_SIZE} byte key to.
+     * @param destOffset the offset in {@code dest} to copy the key to.
+     * @return {@code true} if the key was copied, {@code false} if the certificate could not be
+     *         scanned or does not hold a P-256 key.
+     */
+    public static boolean copyRawPublicKey(byte[] encodedCert, byte[] dest, int destOffset) {
+        try {
+            DerReader reader = new DerReader(encodedCert, 0 /* offset */, encodedCert.length);
+            reader.readHeader(DerReader.TAG_SEQUENCE);
+            int tbsEnd = readToValidity(reader);
+            reader.skipValue(DerReader.TAG_SEQUENCE);               // validity
+            reader.skipValue(DerReader.TAG_SEQUENCE);               // subject
+            int publicKeyOffset = readP256PublicKeyOffset(reader);
+            if (reader.getPosition() > tbsEnd) {
+                throw new CertificateParsingException("TBSCertificate overruns its bounds");
+            }
+            System.arraycopy(encodedCert, publicKeyOffset, dest, destOffset,
+                             LeafCertificate.RAW_PUBLIC_KEY_SIZE);
+            return true;
+        } catch (CertificateParsingException e) {
+            Log.w(TAG, "Unable to scan certificate: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads the header of a TBSCertificate and skips the fields ahead of its validity.
+     *
+     * @return the offset of the end of the TBSCertificate.
+     */
+    private static int readToValidity(DerReader reader) throws CertificateParsingException {
+        int tbsEnd = reader.readHeader(DerReader.TAG_SEQUENCE) + reader.getPosition();
+        if (reader.peekTag() == DerReader.TAG_CONTEXT_SPECIFIC_0) {
+            reader.skipValue(DerReader.TAG_CONTEXT_SPECIFIC_0);     // version
+        }
+        reader.skipValue(DerReader.TAG_INTEGER);                    // serialNumber
+        reader.skipValue(DerReader.TAG_SEQUENCE);                   // signature
+        reader.skipValue(DerReader.TAG_SEQUENCE);                   // issuer
+        return tbsEnd;
+    }
+
+    private static long readTime(DerReader reader) throws CertificateParsingException {
+        int year;
+        if (reader.peekTag() == DerReader.TAG_UTC_TIME) {
+            if (reader.readHeader(DerReader.TAG_UTC_TIME) != UTC_TIME_LENGTH) {
+                throw new CertificateParsingException("Malformed UTCTime");
+            }
+            // RFC 5280 section 4.1.2.5.1: two digit years from 50 onwards are in the 1900s.
+            year = readDigits(reader, 2);
+            year += year >= 50 ? 1900 : 2000;
+        } else {
+            if (reader.readHeader(DerReader.TAG_GENERALIZED_TIME) != GENERALIZED_TIME_LENGTH) {
+                throw new CertificateParsingException("Malformed GeneralizedTime");
+            }
+            year = readDigits(reader, 4);
+        }
+        int month = readDigits(reader, 2);
+        int day = readDigits(reader, 2);
+        int hour = readDigits(reader, 2);
+        int minute = readDigits(reader, 2);
+        int second = readDigits(reader, 2);
+        if (reader.readByte() != 'Z') {
+            throw new CertificateParsingException("Time is not in UTC");
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second)
+                                .toInstant(ZoneOffset.UTC)
+                                .toEpochMilli();
+        } catch (DateTimeException e) {
+            throw new CertificateParsingException("Invalid date", e);
+        }
+    }
+
+    private static int readDigits(DerReader reader, int count)
+            throws CertificateParsingException {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int digit = reader.readByte() - '0';
+            if (digit < 0 || digit > 9) {
+                throw new CertificateParsingException("Expected a digit");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Reads a SubjectPublicKeyInfo, which must hold an uncompressed ECDSA-P256 key, and returns
+     * the offset of the key's x coordinate.
+     */
+    private static int readP256PublicKeyOffset(DerReader reader)
+            throws CertificateParsingException {
+        reader.readHeader(DerReader.TAG_SEQUENCE);                  // subjectPublicKeyInfo
+        int algorithmEnd = reader.readHeader(DerReader.TAG_SEQUENCE) + reader.getPosition();
+        checkObjectIdentifier(reader, EC_PUBLIC_KEY_OID);
+        checkObjectIdentifier(reader, P256_OID);
+        if (reader.getPosition() != algorithmEnd) {
+            throw new CertificateParsingException("Unexpected algorithm parameters");
+        }
+        // One byte for the count of unused bits, one for the point format, then x | y.
+        if (reader.readHeader(DerReader.TAG_BIT_STRING) != LeafCertificate.RAW_PUBLIC_KEY_SIZE + 2
+                || reader.readByte() != 0
+                || reader.readByte() != UNCOMPRESSED_POINT_FORMAT) {
+            throw new CertificateParsingException("Not an uncompressed P-256 point");
+        }
+        int offset = reader.getPosition();
+        reader.skip(LeafCertificate.RAW_PUBLIC_KEY_SIZE);
+        return offset;
+    }
+
+    private static void checkObjectIdentifier(DerReader reader, byte[] expected)
+            throws CertificateParsingException {
+        if (reader.readHeader(DerReader.TAG_OBJECT_IDENTIFIER) != expected.length) {
+            throw new CertificateParsingException("Unexpected object identifier");
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (reader.readByte() != (expected[i] & 0xff)) {
+                throw new CertificateParsingException("Unexpected object identifier");
+            }
+        }
+    }
+
     /**
      * Extracts an ECDSA-P256 key from a certificate and formats it so that it can be used to match
      * the certificate chain to the proper key when passed into the keystore database.
@@ -28,22 +28,49 @@ import android.security.remoteprovisioning.ImplInfo;
 import android.security.remoteprovisioning.IRemoteProvisioning;
 import android.util.Log;
 
+import com.android.remoteprovisioner.DemandForecaster;
 import com.android.remoteprovisioner.GeekResponse;
+import com.android.remoteprovisioner.KeyGenerationPacer;
+import com.android.remoteprovisioner.PoolWatermarks;
 import com.android.remoteprovisioner.Provisioner;
+import com.android.remoteprovisioner.RetryPolicy;
 import com.android.remoteprovisioner.ServerInterface;
-import com.android.remoteprovisioner.SettingsManager;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Provides the implementation for IGenerateKeyService.aidl
+ *
+ * Filling the pool generates keys and talks to the server, which can take many seconds, so it is
+ * done on a background executor. Keystore calls generateKey when it has found the pool empty and
+ * retries as soon as the call returns, so that call waits for the fill to complete. It calls
+ * notifyKeyGenerated after taking a key out of a pool that may still hold more, so that call
+ * returns as soon as the fill is queued.
  */
 public class GenerateRkpKeyService extends Service {
-    private static final int KEY_GENERATION_PAUSE_MS = 1000;
+    // At most one fill runs per security level, and there are rarely more than two of those.
+    private static final int MAX_CONCURRENT_FILLS = 2;
     private static final String SERVICE = "android.security.remoteprovisioning";
     private static final String TAG = "RemoteProvisioningService";
 
+    private ExecutorService mFillExecutor;
+    private PoolFiller mPoolFiller;
+
     @Override
     public void onCreate() {
         super.onCreate();
+        mFillExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_FILLS);
+        mPoolFiller = new PoolFiller(this::checkAndFillPool, mFillExecutor);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Interrupts any fill that is still generating keys. Keys generated so far stay in the
+        // pool as unsigned keys, to be picked up by the next fill or the periodic job.
+        mFillExecutor.shutdownNow();
+        super.onDestroy();
     }
 
     @Override
@@ -55,63 +82,86 @@ public class GenerateRkpKeyService extends Service {
         @Override
         public void generateKey(int securityLevel) {
             try {
-                IRemoteProvisioning binder =
-                        IRemoteProvisioning.Stub.asInterface(ServiceManager.getService(SERVICE));
-                checkAndFillPool(binder, securityLevel);
+                mPoolFiller.fillPool(securityLevel);
             } catch (RemoteException e) {
                 Log.e(TAG, "Remote Exception: ", e);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Pool fill rejected, the service is shutting down.");
             }
         }
 
         @Override
         public void notifyKeyGenerated(int securityLevel) {
-            try {
-                IRemoteProvisioning binder =
-                        IRemoteProvisioning.Stub.asInterface(ServiceManager.getService(SERVICE));
-                checkAndFillPool(binder, securityLevel);
-            } catch (RemoteException e) {
-                Log.e(TAG, "Remote Exception: ", e);
-            }
+            DemandForecaster.recordKeyAssigned(
+                    getApplicationContext(), securityLevel, System.currentTimeMillis());
+            mPoolFiller.requestFill(securityLevel);
+        }
+    };
+
+    private static IRemoteProvisioning getBinder() throws RemoteException {
+        IRemoteProvisioning binder =
+                IRemoteProvisioning.Stub.asInterface(ServiceManager.getService(SERVICE));
+        if (binder == null) {
+            throw new RemoteException("Failed to get the " + SERVICE + " service");
         }
+        return binder;
+    }
 
-        private void checkAndFillPool(IRemoteProvisioning binder, int secLevel)
-                throws RemoteException {
-            AttestationPoolStatus pool =
-                    binder.getPoolStatus(System.currentTimeMillis(), secLevel);
-            ImplInfo[] implInfos = binder.getImplementationInfo();
-            int curve = 0;
-            for (int i = 0; i < implInfos.length; i++) {
-                if (implInfos[i].secLevel == secLevel) {
-                    curve = implInfos[i].supportedCurve;
-                    break;
-                }
+    /**
+     * Fills the pool for {@code secLevel} if it has dropped below its low watermark. Concurrent
+     * calls for the same security level are coalesced into one by {@link #mPoolFiller}.
+     *
+     * @return the number of keys provisioned.
+     */
+    private int checkAndFillPool(int secLevel) throws RemoteException {
+        IRemoteProvisioning binder = getBinder();
+        AttestationPoolStatus pool = binder.getPoolStatus(System.currentTimeMillis(), secLevel);
+        Context context = getApplicationContext();
+        DemandForecaster.recordPoolStatus(context, secLevel, pool, System.currentTimeMillis());
+        ImplInfo[] implInfos = binder.getImplementationInfo();
+        int curve = 0;
+        for (int i = 0; i < implInfos.length; i++) {
+            if (implInfos[i].secLevel == secLevel) {
+                curve = implInfos[i].supportedCurve;
+                break;
             }
-            // If there are no unassigned keys, go ahead and provision some. If there are no
-            // attested keys at all on the system, this implies that it is a hybrid
-            // rkp/factory-provisioned system that has turned off RKP. In that case, do
-            // not provision.
-            if (pool.unassigned == 0 && pool.attested != 0) {
-                Log.i(TAG, "All signed keys are currently in use, provisioning more.");
-                Context context = getApplicationContext();
-                int keysToProvision = SettingsManager.getExtraSignedKeysAvailable(context);
-                int existingUnsignedKeys = pool.total - pool.attested;
-                int keysToGenerate = keysToProvision - existingUnsignedKeys;
-                try {
-                    for (int i = 0; i < keysToGenerate; i++) {
-                        binder.generateKeyPair(false /* isTestMode */, secLevel);
-                        Thread.sleep(KEY_GENERATION_PAUSE_MS);
-                    }
-                } catch (InterruptedException e) {
-                    Log.i(TAG, "Thread interrupted", e);
-                }
-                GeekResponse resp = ServerInterface.fetchGeek(context);
-                if (resp == null) {
-                    Log.e(TAG, "Server unavailable");
-                    return;
+        }
+        // If the unassigned keys have dropped below the low watermark, top them back up to the
+        // high watermark before they run out. If there are no attested keys at all on the
+        // system, this implies that it is a hybrid rkp/factory-provisioned system that has
+        // turned off RKP. In that case, do not provision.
+        int keysToProvision = PoolWatermarks.get(context, secLevel).keysToRefill(pool.unassigned);
+        if (keysToProvision > 0 && pool.attested != 0) {
+            Log.i(TAG, pool.unassigned + " signed keys are unassigned, provisioning "
+                    + keysToProvision + " more.");
+            int existingUnsignedKeys = pool.total - pool.attested;
+            int keysToGenerate = keysToProvision - existingUnsignedKeys;
+            KeyGenerationPacer pacer = KeyGenerationPacer.getInstance(context, secLevel);
+            try {
+                for (int i = 0; i < keysToGenerate; i++) {
+                    pacer.generateKeyPair(binder, secLevel);
+                    pacer.pause();
                 }
-                Provisioner.provisionCerts(keysToProvision, secLevel, resp.getGeekChain(curve),
-                                           resp.getChallenge(), binder, context);
+            } catch (InterruptedException e) {
+                // The service is being destroyed. Leave the keys generated so far unsigned.
+                Log.i(TAG, "Thread interrupted", e);
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            GeekResponse resp = ServerInterface.fetchGeek(context);
+            if (resp == null) {
+                Log.e(TAG, "Server unavailable");
+                return 0;
+            }
+            int provisioned = Provisioner.provisionCerts(keysToProvision, secLevel,
+                    resp.getGeekChain(curve), resp.getChallenge(), binder, context);
+            // A failure has already been recorded by whichever step knew why it failed, so only
+            // a fill that went through in full resets the backoff of the periodic job.
+            if (provisioned >= keysToProvision) {
+                RetryPolicy.recordSuccess(context);
             }
+            return provisioned;
         }
-    };
+        return 0;
+    }
 }
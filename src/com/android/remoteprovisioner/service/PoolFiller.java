@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.service;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Coalesces concurrent requests to fill the attestation key pool of a security level. When several
+ * apps attest at once, each of them finds the pool empty; rather than every one of them
+ * generating keys and sending its own CSR, the first caller for a security level runs the fill and
+ * any caller that arrives while it is in flight waits for it and shares its result.
+ *
+ * A caller that arrives after a fill has completed starts a new one, which will find the pool
+ * already topped up.
+ *
+ * Fills run on the executor given at construction rather than on the calling thread, since they
+ * generate keys and make network requests that can take many seconds. Callers that need the keys
+ * before they go on wait for the fill through {@link #fillPool}, and the rest queue it through
+ * {@link #requestFill}.
+ */
+public class PoolFiller {
+    private static final String TAG = "RemoteProvisioningService";
+
+    /**
+     * Checks the pool of one security level and fills it if need be.
+     */
+    public interface Fill {
+        /**
+         * @return the number of keys provisioned.
+         */
+        int fill(int secLevel) throws RemoteException;
+    }
+
+    private final Fill mFill;
+    private final Executor mExecutor;
+    private final Map<Integer, CompletableFuture<Integer>> mInFlight = new HashMap<>();
+
+    public PoolFiller(Fill fill, Executor executor) {
+        mFill = fill;
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues a fill of the pool of {@code secLevel}, or joins the fill already in flight for it,
+     * and returns without waiting for it.
+     *
+     * @return a future which completes with the number of keys provisioned by the fill, or
+     *         exceptionally if the fill failed or could not be queued.
+     */
+    public CompletableFuture<Integer> requestFill(int secLevel) {
+        CompletableFuture<Integer> fill;
+        synchronized (mInFlight) {
+            fill = mInFlight.get(secLevel);
+            if (fill != null) {
+                return fill;
+            }
+            fill = new CompletableFuture<>();
+            mInFlight.put(secLevel, fill);
+        }
+        CompletableFuture<Integer> newFill = fill;
+        try {
+            mExecutor.execute(() -> runFill(secLevel, newFill));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Pool fill rejected, the service is shutting down.");
+            finish(secLevel);
+            fill.completeExceptionally(e);
+        }
+        return fill;
+    }
+
+    /**
+     * Fills the pool of {@code secLevel}, or joins the fill already in flight for it, and waits
+     * for it to complete.
+     *
+     * @return the number of keys provisioned by the fill.
+     */
+    public int fillPool(int secLevel) throws RemoteException {
+        return awaitFill(requestFill(secLevel));
+    }
+
+    private void runFill(int secLevel, CompletableFuture<Integer> fill) {
+        try {
+            int provisioned = mFill.fill(secLevel);
+            finish(secLevel);
+            fill.complete(provisioned);
+        } catch (Throwable t) {
+            // Joined callers are waiting on the fill, so it must complete whatever happens.
+            Log.e(TAG, "Failed to fill the pool for security level " + secLevel, t);
+            finish(secLevel);
+            fill.completeExceptionally(t);
+        }
+    }
+
+    private void finish(int secLevel) {
+        synchronized (mInFlight) {
+            mInFlight.remove(secLevel);
+        }
+    }
+
+    private static int awaitFill(CompletableFuture<Integer> fill) throws RemoteException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return fill.get();
+                } catch (InterruptedException e) {
+                    // The fill is shared, so keep waiting for it and restore the interrupt after.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A minimal benchmark harness in the spirit of JMH's average time mode with the GC profiler. Each
+ * benchmark is warmed up for a fixed duration, then measured over several fixed duration
+ * iterations. The harness reports the median time per operation and the number of bytes
+ * allocated per operation by the benchmarking thread.
+ */
+public class BenchmarkRunner {
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    private final com.sun.management.ThreadMXBean mThreadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final String mFilter;
+    // Results are folded into this field so the JIT cannot eliminate the benchmarked work.
+    private volatile int mSink;
+
+    /**
+     * A single benchmarked operation. The returned value is consumed by the harness.
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * @param filter only benchmarks whose name contains this string are run. May be null.
+     */
+    public BenchmarkRunner(String filter) {
+        mFilter = filter;
+        if (!mThreadBean.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("This JVM cannot report per-thread allocations");
+        }
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        System.out.println(String.format("%-40s %8s %14s %14s",
+                "Benchmark", "Size", "ns/op", "B/op"));
+    }
+
+    /**
+     * Runs {@code op} as the benchmark called {@code name} with input size {@code size}, and
+     * prints its results.
+     */
+    public void run(String name, int size, Operation op) throws Exception {
+        if (mFilter != null && !name.contains(mFilter)) {
+            return;
+        }
+        long threadId = Thread.currentThread().getId();
+        runFor(op, WARMUP_NANOS);
+        double[] nanosPerOp = new double[MEASUREMENT_ITERATIONS];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long bytesBefore = mThreadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long ops = runFor(op, ITERATION_NANOS);
+            long elapsed = System.nanoTime() - start;
+            totalBytes += mThreadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+            totalOps += ops;
+            nanosPerOp[i] = (double) elapsed / ops;
+        }
+        Arrays.sort(nanosPerOp);
+        System.out.println(String.format("%-40s %8d %14.1f %14.1f",
+                name, size, nanosPerOp[MEASUREMENT_ITERATIONS / 2],
+                (double) totalBytes / totalOps));
+    }
+
+    private long runFor(Operation op, long durationNanos) throws Exception {
+        long deadline = System.nanoTime() + durationNanos;
+        long ops = 0;
+        int sink = 0;
+        do {
+            Object result = op.run();
+            sink += System.identityHashCode(result);
+            ops++;
+        } while (System.nanoTime() < deadline);
+        mSink += sink;
+        return ops;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.benchmark;
+
+import static com.android.remoteprovisioner.unittest.Utils.generateEcdsaKeyPair;
+import static com.android.remoteprovisioner.unittest.Utils.signPublicKey;
+
+import android.hardware.security.keymint.DeviceInfo;
+import android.hardware.security.keymint.ProtectedData;
+import android.security.remoteprovisioning.IRemoteProvisioning;
+
+import com.android.remoteprovisioner.CborUtils;
+import com.android.remoteprovisioner.LeafCertificate;
+import com.android.remoteprovisioner.SystemInterface;
+import com.android.remoteprovisioner.X509Utils;
+import com.android.remoteprovisioner.unittest.Utils;
+
+import com.google.crypto.tink.subtle.Ed25519Sign;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.CborEncoder;
+import co.nstant.in.cbor.builder.ArrayBuilder;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.UnsignedInteger;
+
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for the CBOR and X.509 processing on the provisioning path. Every benchmark is run
+ * against synthetic inputs holding 1 to 1000 certificate chains or keys, built with the same
+ * helpers the unit tests use.
+ *
+ * Usage: RemoteProvisionerBenchmarks [name filter]
+ */
+public class RemoteProvisionerBenchmarks {
+    private static final int[] SIZES = new int[] {1, 10, 100, 1000};
+    private static final int MAX_SIZE = 1000;
+    private static final byte[] CHALLENGE = new byte[] {0x0a, 0x0b, 0x0c, 0x0d};
+    private static final int COSE_KEY_KTY = 1;
+    private static final int COSE_KEY_ALG = 3;
+    private static final int COSE_KEY_CURVE = -1;
+    private static final int COSE_KEY_X = -2;
+    private static final int COSE_KEY_Y = -3;
+
+    private final Random mRandom = new Random(0 /* seed */);
+    private byte[] mSharedCerts;
+    private X509Certificate[] mLeafCerts;
+    private byte[][] mEncodedLeafCerts;
+
+    public static void main(String[] args) throws Exception {
+        new RemoteProvisionerBenchmarks().runAll(
+                new BenchmarkRunner(args.length > 0 ? args[0] : null));
+    }
+
+    private void runAll(BenchmarkRunner runner) throws Exception {
+        generateCertificates();
+        for (int size : SIZES) {
+            byte[] signedCertsResponse = buildSignedCertificatesResponse(size);
+            runner.run("parseSignedCertificates", size,
+                    () -> CborUtils.parseSignedCertificates(signedCertsResponse));
+            runner.run("parseSignedCertificates+materialize", size, () -> {
+                int total = 0;
+                for (byte[] chain : CborUtils.parseSignedCertificates(signedCertsResponse)) {
+                    total += chain.length;
+                }
+                return total;
+            });
+        }
+        for (int size : SIZES) {
+            byte[] geekResponse = buildGeekResponse(size);
+            runner.run("parseGeekResponse", size, () -> {
+                return CborUtils.parseGeekResponse(geekResponse).getGeekChain(
+                        CborUtils.EC_CURVE_25519);
+            });
+        }
+        for (int size : SIZES) {
+            IRemoteProvisioning binder = new FakeRemoteProvisioning(buildMacedPublicKeys(size));
+            runner.run("SystemInterface.generateCsr", size, () -> {
+                return SystemInterface.generateCsr(false /* testMode */, size, 1 /* secLevel */,
+                        null /* geekChain */, CHALLENGE, new ProtectedData(), new DeviceInfo(),
+                        binder);
+            });
+            byte[] macedKeysToSign = SystemInterface.generateCsr(false /* testMode */, size,
+                    1 /* secLevel */, null /* geekChain */, CHALLENGE, new ProtectedData(),
+                    new DeviceInfo(), binder);
+            byte[] deviceInfo = buildDeviceInfo();
+            byte[] protectedData = buildProtectedData();
+            runner.run("buildCertificateRequest", size, () -> {
+                return CborUtils.buildCertificateRequest(deviceInfo, CHALLENGE, protectedData,
+                        macedKeysToSign);
+            });
+        }
+        for (int size : SIZES) {
+            List<byte[]> chains =
+                    CborUtils.parseSignedCertificates(buildSignedCertificatesResponse(size));
+            runner.run("X509Utils.formatX509Certs", size, () -> {
+                int total = 0;
+                for (byte[] chain : chains) {
+                    total += X509Utils.formatX509Certs(chain).length;
+                }
+                return total;
+            });
+            runner.run("X509Utils.scanLeafCertificate", size, () -> {
+                int total = 0;
+                for (byte[] chain : chains) {
+                    total += X509Utils.scanLeafCertificate(chain).getEncoded().length;
+                }
+                return total;
+            });
+            runner.run("X509Utils.getAndFormatRawPublicKey", size, () -> {
+                int total = 0;
+                for (int i = 0; i < size; i++) {
+                    total += X509Utils.getAndFormatRawPublicKey(mLeafCerts[i]).length;
+                }
+                return total;
+            });
+            byte[] rawPublicKey = new byte[LeafCertificate.RAW_PUBLIC_KEY_SIZE];
+            runner.run("X509Utils.copyRawPublicKey", size, () -> {
+                int total = 0;
+                for (int i = 0; i < size; i++) {
+                    if (X509Utils.copyRawPublicKey(mEncodedLeafCerts[i], rawPublicKey,
+                                                   0 /* destOffset */)) {
+                        total++;
+                    }
+                }
+                return total;
+            });
+        }
+    }
+
+    private void generateCertificates() throws Exception {
+        KeyPair root = generateEcdsaKeyPair();
+        KeyPair intermediate = generateEcdsaKeyPair();
+        ByteArrayOutputStream shared = new ByteArrayOutputStream();
+        shared.write(signPublicKey(root, intermediate.getPublic()).getEncoded());
+        shared.write(signPublicKey(root, root.getPublic()).getEncoded());
+        mSharedCerts = shared.toByteArray();
+        mLeafCerts = new X509Certificate[MAX_SIZE];
+        mEncodedLeafCerts = new byte[MAX_SIZE][];
+        for (int i = 0; i < MAX_SIZE; i++) {
+            mLeafCerts[i] = signPublicKey(intermediate, generateEcdsaKeyPair().getPublic());
+            mEncodedLeafCerts[i] = mLeafCerts[i].getEncoded();
+        }
+    }
+
+    private byte[] buildSignedCertificatesResponse(int numChains) throws Exception {
+        ArrayBuilder<ArrayBuilder<CborBuilder>> uniqueCerts = new CborBuilder()
+                .addArray()
+                    .add(mSharedCerts)
+                    .addArray();
+        for (int i = 0; i < numChains; i++) {
+            uniqueCerts.add(mLeafCerts[i].getEncoded());
+        }
+        return encode(uniqueCerts.end().end().build().get(0));
+    }
+
+    /**
+     * Builds a GEEK response for two curves, where each EEK chain holds {@code chainLength}
+     * COSE_Sign1 certificates.
+     */
+    private byte[] buildGeekResponse(int chainLength) throws Exception {
+        Ed25519Sign.KeyPair kp = Ed25519Sign.KeyPair.newKeyPair();
+        Array eekChain = new Array();
+        for (int i = 0; i < chainLength; i++) {
+            eekChain.add(Utils.encodeAndSignSign1Ed25519(
+                    Utils.encodeEd25519PubKey(kp.getPublicKey()), kp.getPrivateKey()));
+        }
+        return encode(new CborBuilder()
+                .addArray()
+                    .addArray()
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_25519))
+                            .add(eekChain)
+                            .end()
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_P256))
+                            .add(eekChain)
+                            .end()
+                        .end()
+                    .add(CHALLENGE)
+                    .addMap()
+                        .put(CborUtils.EXTRA_KEYS, 6)
+                        .put(CborUtils.TIME_TO_REFRESH, 72)
+                        .put(CborUtils.PROVISIONING_URL, "https://example.com/v1")
+                        .end()
+                    .end()
+                .build().get(0));
+    }
+
+    /**
+     * Builds what keystore returns from generateCsr: the MAC tag followed by one P-256 COSE_Key
+     * for each key in the CSR.
+     */
+    private byte[] buildMacedPublicKeys(int numKeys) throws Exception {
+        ArrayBuilder<CborBuilder> macedKeys = new CborBuilder()
+                .addArray()
+                    .add(randomBytes(32));
+        for (int i = 0; i < numKeys; i++) {
+            macedKeys.addMap()
+                    .put(COSE_KEY_KTY, 2 /* EC2 */)
+                    .put(COSE_KEY_ALG, -7 /* ES256 */)
+                    .put(COSE_KEY_CURVE, 1 /* P-256 */)
+                    .put(COSE_KEY_X, randomBytes(32))
+                    .put(COSE_KEY_Y, randomBytes(32))
+                    .end();
+        }
+        return encode(macedKeys.end().build().get(0));
+    }
+
+    private byte[] buildDeviceInfo() throws Exception {
+        return encode(new CborBuilder()
+                .addMap()
+                    .put("brand", "Google")
+                    .put("manufacturer", "Google")
+                    .put("product", "sdk_phone64_x86_64")
+                    .put("model", "sdk_phone64_x86_64")
+                    .put("board", "goldfish_x86_64")
+                    .put("device", "emulator64_x86_64")
+                    .put("vb_state", "orange")
+                    .put("bootloader_state", "unlocked")
+                    .put("os_version", 120000)
+                    .put("system_patch_level", 202109)
+                    .put("security_level", "tee")
+                    .put("version", 1)
+                    .end()
+                .build().get(0));
+    }
+
+    private byte[] buildProtectedData() throws Exception {
+        return encode(new CborBuilder()
+                .addArray()
+                    .add(randomBytes(8))                 // protected headers
+                    .addMap()                            // unprotected headers
+                        .put(5, randomBytes(12))
+                        .end()
+                    .add(randomBytes(1024))              // ciphertext
+                    .addArray()                          // recipients
+                        .addArray()
+                            .add(randomBytes(4))
+                            .addMap()
+                                .put(4, randomBytes(32))
+                                .end()
+                            .add(new byte[0])
+                            .end()
+                        .end()
+                    .end()
+                .build().get(0));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] encode(DataItem item) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new CborEncoder(baos).encode(item);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Stands in for keystore, returning the same pre-built generateCsr output on every call.
+     */
+    private static class FakeRemoteProvisioning implements IRemoteProvisioning {
+        private final byte[] mMacedPublicKeys;
+
+        FakeRemoteProvisioning(byte[] macedPublicKeys) {
+            mMacedPublicKeys = macedPublicKeys;
+        }
+
+        @Override
+        public byte[] generateCsr(boolean testMode, int numCsr, byte[] eek, byte[] challenge,
+                int secLevel, ProtectedData protectedData, DeviceInfo deviceInfo) {
+            return mMacedPublicKeys;
+        }
+
+        @Override
+        public void provisionCertChain(byte[] publicKey, byte[] batchCert, byte[] certs,
+                long expirationDate, int secLevel) {
+        }
+    }
+}
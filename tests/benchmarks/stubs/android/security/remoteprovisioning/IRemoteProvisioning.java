@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.security.remoteprovisioning;
+
+import android.hardware.security.keymint.DeviceInfo;
+import android.hardware.security.keymint.ProtectedData;
+import android.os.RemoteException;
+
+/**
+ * Host stub of the AIDL interface, covering only what the benchmarked code uses.
+ */
+public interface IRemoteProvisioning {
+    byte[] generateCsr(boolean testMode, int numCsr, byte[] eek, byte[] challenge, int secLevel,
+            ProtectedData protectedData, DeviceInfo deviceInfo) throws RemoteException;
+
+    void provisionCertChain(byte[] publicKey, byte[] batchCert, byte[] certs, long expirationDate,
+            int secLevel) throws RemoteException;
+}
@@ -19,13 +19,20 @@ package com.android.remoteprovisioner.unittest;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
+import android.content.Context;
+import android.os.Build;
 import android.platform.test.annotations.Presubmit;
 
+import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.remoteprovisioner.CborReader;
 import com.android.remoteprovisioner.CborUtils;
 import com.android.remoteprovisioner.GeekResponse;
+import com.android.remoteprovisioner.SettingsManager;
+import com.android.remoteprovisioner.SignedCertificateChains;
 
 import co.nstant.in.cbor.CborBuilder;
 import co.nstant.in.cbor.CborDecoder;
@@ -44,7 +51,9 @@ import org.junit.runner.RunWith;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @RunWith(AndroidJUnit4.class)
@@ -114,6 +123,60 @@ public class CborUtilsTest {
         assertArrayEquals(new byte[] {0x07, 0x08, 0x09, 0x01, 0x02, 0x03}, certChains.get(1));
     }
 
+    @Test
+    public void testParseSignedCertificateChainsReferencesResponse() throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .add(new byte[] {0x01, 0x02, 0x03})
+                    .addArray()
+                        .add(new byte[] {0x04, 0x05, 0x06})
+                        .add(new byte[] {0x07, 0x08})
+                        .end()
+                    .end()
+                .build());
+        byte[] encodedBytes = mBaos.toByteArray();
+        SignedCertificateChains chains = CborUtils.parseSignedCertificateChains(encodedBytes);
+        assertEquals(2, chains.size());
+        assertSame(encodedBytes, chains.getBuffer());
+        assertArrayEquals(new byte[] {0x01, 0x02, 0x03},
+                Arrays.copyOfRange(encodedBytes, chains.getSharedOffset(),
+                                   chains.getSharedOffset() + chains.getSharedLength()));
+        assertArrayEquals(new byte[] {0x07, 0x08},
+                Arrays.copyOfRange(encodedBytes, chains.getUniqueOffset(1),
+                                   chains.getUniqueOffset(1) + chains.getUniqueLength(1)));
+        assertEquals(5, chains.getChainLength(1));
+        assertArrayEquals(new byte[] {0x07, 0x08, 0x01, 0x02, 0x03}, chains.get(1));
+    }
+
+    @Test
+    public void testParseSignedCertificatesTruncated() throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .add(new byte[] {0x01, 0x02, 0x03})
+                    .addArray()
+                        .add(new byte[] {0x04, 0x05, 0x06})
+                        .end()
+                    .end()
+                .build());
+        byte[] encodedBytes = mBaos.toByteArray();
+        assertNull(CborUtils.parseSignedCertificates(
+                Arrays.copyOf(encodedBytes, encodedBytes.length - 1)));
+    }
+
+    @Test
+    public void testParseSignedCertificatesTrailingData() throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .add(new byte[] {0x01, 0x02, 0x03})
+                    .addArray()
+                        .add(new byte[] {0x04, 0x05, 0x06})
+                        .end()
+                    .end()
+                .add(1)
+                .build());
+        assertNull(CborUtils.parseSignedCertificates(mBaos.toByteArray()));
+    }
+
     @Test
     public void testParseSignedCertificatesWrongSize() throws Exception {
         new CborEncoder(mBaos).encode(new CborBuilder()
@@ -211,6 +274,150 @@ public class CborUtilsTest {
         assertEquals(TEST_URL, resp.provisioningUrl);
     }
 
+    @Test
+    public void testParseGeekResponsePerformanceConfig() throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .addArray()                                       // GEEK Curve to Chains
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_25519))
+                            .add(mGeekChain1)
+                            .end()
+                        .end()
+                    .add(CHALLENGE)
+                    .add(mDeviceConfig
+                            .put(new UnicodeString(CborUtils.CSR_BATCH_SIZE),
+                                 new UnsignedInteger(40))
+                            .put(new UnicodeString(CborUtils.KEY_GENERATION_PAUSE),
+                                 new UnsignedInteger(250))
+                            .put(new UnicodeString(CborUtils.SERVER_TIMEOUT),
+                                 new UnsignedInteger(10000))
+                            .put(new UnicodeString(CborUtils.SCHEDULER_PERIOD),
+                                 new UnsignedInteger(12))
+                            .put(new UnicodeString(CborUtils.SCHEDULE_SPREAD),
+                                 new UnsignedInteger(90))
+                            .put(new UnicodeString(CborUtils.DEMAND_CONFIDENCE),
+                                 new UnsignedInteger(80))
+                            .put(new UnicodeString(CborUtils.MAX_RESPONSE_SIZE),
+                                 new UnsignedInteger(256)))
+                    .end()
+                .build());
+        GeekResponse resp = CborUtils.parseGeekResponse(mBaos.toByteArray());
+        mBaos.reset();
+        assertEquals(40, resp.csrBatchSize);
+        assertEquals(250, resp.keyGenerationPause.toMillis());
+        assertEquals(10000, resp.serverTimeout.toMillis());
+        assertEquals(12, resp.schedulerPeriod.toHours());
+        assertEquals(90, resp.scheduleSpread.toMinutes());
+        assertEquals(80, resp.demandConfidence);
+        assertEquals(256, resp.maxResponseSize);
+        assertEquals(TEST_EXTRA_KEYS, resp.numExtraAttestationKeys);
+    }
+
+    @Test
+    public void testParseGeekResponseIgnoresOutOfBoundsPerformanceConfig() throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .addArray()                                       // GEEK Curve to Chains
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_25519))
+                            .add(mGeekChain1)
+                            .end()
+                        .end()
+                    .add(CHALLENGE)
+                    .add(mDeviceConfig
+                            .put(new UnicodeString(CborUtils.CSR_BATCH_SIZE),
+                                 new UnsignedInteger(SettingsManager.CSR_BATCH_SIZE_MAX + 1))
+                            .put(new UnicodeString(CborUtils.KEY_GENERATION_PAUSE),
+                                 new UnsignedInteger(
+                                         SettingsManager.KEY_GENERATION_PAUSE_MS_MAX + 1))
+                            .put(new UnicodeString(CborUtils.SERVER_TIMEOUT),
+                                 new UnsignedInteger(SettingsManager.SERVER_TIMEOUT_MS_MIN - 1))
+                            .put(new UnicodeString(CborUtils.SCHEDULER_PERIOD),
+                                 new UnsignedInteger(0))
+                            .put(new UnicodeString(CborUtils.SCHEDULE_SPREAD),
+                                 new UnsignedInteger(
+                                         SettingsManager.SCHEDULE_SPREAD_MINUTES_MAX + 1))
+                            .put(new UnicodeString(CborUtils.DEMAND_CONFIDENCE),
+                                 new UnsignedInteger(
+                                         SettingsManager.DEMAND_CONFIDENCE_PERCENT_MAX + 1))
+                            .put(new UnicodeString(CborUtils.MAX_RESPONSE_SIZE),
+                                 new UnsignedInteger(SettingsManager.MAX_RESPONSE_KB_MIN - 1)))
+                    .end()
+                .build());
+        GeekResponse resp = CborUtils.parseGeekResponse(mBaos.toByteArray());
+        mBaos.reset();
+        assertEquals(GeekResponse.NO_CSR_BATCH_SIZE_UPDATE, resp.csrBatchSize);
+        assertNull(resp.keyGenerationPause);
+        assertNull(resp.serverTimeout);
+        assertNull(resp.schedulerPeriod);
+        assertNull(resp.scheduleSpread);
+        assertEquals(GeekResponse.NO_DEMAND_CONFIDENCE_UPDATE, resp.demandConfidence);
+        assertEquals(GeekResponse.NO_MAX_RESPONSE_SIZE_UPDATE, resp.maxResponseSize);
+        assertEquals(TEST_EXTRA_KEYS, resp.numExtraAttestationKeys);
+        assertEquals(TEST_URL, resp.provisioningUrl);
+    }
+
+    @Test
+    public void testParseGeekResponsePoolWatermarks() throws Exception {
+        Map watermarks = new Map()
+                .put(new UnsignedInteger(2), watermarkPair(1, 3))
+                // Low above high, out of bounds, and zero are each ignored.
+                .put(new UnsignedInteger(1), watermarkPair(5, 2))
+                .put(new UnsignedInteger(3),
+                     watermarkPair(1, SettingsManager.EXTRA_SIGNED_KEYS_MAX + 1))
+                .put(new UnsignedInteger(4), watermarkPair(0, 4));
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .addArray()                                       // GEEK Curve to Chains
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_25519))
+                            .add(mGeekChain1)
+                            .end()
+                        .end()
+                    .add(CHALLENGE)
+                    .add(mDeviceConfig
+                            .put(new UnicodeString(CborUtils.POOL_WATERMARKS), watermarks))
+                    .end()
+                .build());
+        GeekResponse resp = CborUtils.parseGeekResponse(mBaos.toByteArray());
+        mBaos.reset();
+        assertEquals(1, resp.poolWatermarks.size());
+        assertArrayEquals(new int[] {1, 3}, resp.poolWatermarks.get(2));
+        assertEquals(TEST_EXTRA_KEYS, resp.numExtraAttestationKeys);
+    }
+
+    private static Array watermarkPair(int low, int high) {
+        Array pair = new Array();
+        pair.add(new UnsignedInteger(low));
+        pair.add(new UnsignedInteger(high));
+        return pair;
+    }
+
+    @Test
+    public void testGeekChainMaterializedOnce() throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .addArray()                                       // GEEK Curve to Chains
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_25519))
+                            .add(mGeekChain1)
+                            .end()
+                        .end()
+                    .add(CHALLENGE)
+                    .add(mDeviceConfig.put(new UnsignedInteger(1), new UnicodeString("ignored")))
+                    .end()
+                .build());
+        GeekResponse resp = CborUtils.parseGeekResponse(mBaos.toByteArray());
+        mBaos.reset();
+        byte[] geekChain = resp.getGeekChain(CborUtils.EC_CURVE_25519);
+        assertArrayEquals(mEncodedmGeekChain1, geekChain);
+        assertSame(geekChain, resp.getGeekChain(CborUtils.EC_CURVE_25519));
+        assertNull(resp.getGeekChain(CborUtils.EC_CURVE_P256));
+        assertNull(resp.getGeekChain(GeekResponse.MAX_CURVE + 1));
+        assertEquals(TEST_EXTRA_KEYS, resp.numExtraAttestationKeys);
+    }
+
     @Test
     public void testMissingDeviceConfigDoesntFail() throws Exception {
         new CborEncoder(mBaos).encode(new CborBuilder()
@@ -397,4 +604,138 @@ public class CborUtilsTest {
         // MacedKeysToSign
         assertEquals(MajorType.ARRAY, dataItems.get(3).getMajorType());
     }
+
+    @Test
+    public void testCreateCertificateRequestPreservesEncoding() throws Exception {
+        // Non-canonical encodings: the map value 1 is encoded with a one byte argument, and the
+        // array entry is an integer encoded with a two byte argument.
+        byte[] deviceInfo = new byte[] {(byte) 0xA1, 0x61, 0x61, 0x18, 0x01};
+        byte[] challenge = new byte[] {0x01, 0x02, 0x03};
+        byte[] protectedData = new byte[] {(byte) 0x81, 0x19, 0x00, 0x05};
+        byte[] macedKeysToSign = new byte[] {(byte) 0x82, 0x40, (byte) 0xA0};
+        byte[] certReq =
+                CborUtils.buildCertificateRequest(deviceInfo,
+                                                  challenge,
+                                                  protectedData,
+                                                  macedKeysToSign);
+        assertEquals((byte) 0x84, certReq[0]);
+        assertEquals((byte) 0x82, certReq[1]);
+        assertArrayEquals(deviceInfo, Arrays.copyOfRange(certReq, 2, 2 + deviceInfo.length));
+        int macedKeysOffset = certReq.length - macedKeysToSign.length;
+        assertArrayEquals(macedKeysToSign,
+                Arrays.copyOfRange(certReq, macedKeysOffset, certReq.length));
+        assertArrayEquals(protectedData,
+                Arrays.copyOfRange(certReq, macedKeysOffset - protectedData.length,
+                                   macedKeysOffset));
+    }
+
+    @Test
+    public void testCreateCertificateRequestRejectsMalformedInput() throws Exception {
+        byte[] deviceInfo = new byte[] {(byte) 0xA0};
+        byte[] challenge = new byte[] {0x01, 0x02, 0x03};
+        byte[] array = new byte[] {(byte) 0x80};
+        // Wrong type
+        assertNull(CborUtils.buildCertificateRequest(array, challenge, array, array));
+        // Trailing data
+        assertNull(CborUtils.buildCertificateRequest(deviceInfo, challenge,
+                                                     new byte[] {(byte) 0x80, 0x00}, array));
+        // Truncated
+        assertNull(CborUtils.buildCertificateRequest(deviceInfo, challenge, array,
+                                                     new byte[] {(byte) 0x82, 0x00}));
+    }
+
+    private byte[] buildGeekResponse(DataItem eekChain) throws Exception {
+        new CborEncoder(mBaos).encode(new CborBuilder()
+                .addArray()
+                    .addArray()                                       // GEEK Curve to Chains
+                        .addArray()
+                            .add(new UnsignedInteger(CborUtils.EC_CURVE_25519))
+                            .add(eekChain)
+                            .end()
+                        .end()
+                    .add(CHALLENGE)
+                    .add(mDeviceConfig)
+                    .end()
+                .build());
+        byte[] encoded = mBaos.toByteArray();
+        mBaos.reset();
+        return encoded;
+    }
+
+    private static Array nestArrays(int depth) {
+        Array outer = new Array();
+        Array nested = outer;
+        for (int i = 1; i < depth; i++) {
+            Array inner = new Array();
+            nested.add(inner);
+            nested = inner;
+        }
+        nested.add(new ByteString(CHALLENGE));
+        return outer;
+    }
+
+    @Test
+    public void testParseGeekResponseNestingLimit() throws Exception {
+        Array atLimit = nestArrays(CborReader.MAX_NESTING_DEPTH);
+        GeekResponse resp = CborUtils.parseGeekResponse(buildGeekResponse(atLimit));
+        assertArrayEquals(encodeDataItem(atLimit), resp.getGeekChain(CborUtils.EC_CURVE_25519));
+        assertNull(CborUtils.parseGeekResponse(
+                buildGeekResponse(nestArrays(CborReader.MAX_NESTING_DEPTH + 1))));
+    }
+
+    @Test
+    public void testParseGeekResponseRejectsDeeplyNestedConfig() throws Exception {
+        // Unknown device config entries are skipped rather than parsed, but the nesting limit
+        // still applies to them.
+        mDeviceConfig.put(new UnicodeString("unknown_entry"),
+                          nestArrays(CborReader.MAX_NESTING_DEPTH + 1));
+        assertNull(CborUtils.parseGeekResponse(buildGeekResponse(mGeekChain1)));
+    }
+
+    @Test
+    public void testParseRejectsNonCbor() throws Exception {
+        byte[] html = "<html><body>502 Bad Gateway</body></html>"
+                .getBytes(StandardCharsets.UTF_8);
+        assertNull(CborUtils.parseGeekResponse(html));
+        assertNull(CborUtils.parseSignedCertificateChains(html));
+        assertNull(CborUtils.parseGeekResponse(new byte[0]));
+        assertNull(CborUtils.parseSignedCertificateChains(new byte[0]));
+    }
+
+    @Test
+    public void testBuildProvisioningInfoIsCached() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        SettingsManager.generateAndSetId(context);
+        byte[] provisioningInfo = CborUtils.buildProvisioningInfo(context);
+        assertSame(provisioningInfo, CborUtils.buildProvisioningInfo(context));
+        ByteArrayInputStream bais = new ByteArrayInputStream(provisioningInfo);
+        List<DataItem> dataItems = new CborDecoder(bais).decode();
+        assertEquals(1, dataItems.size());
+        assertEquals(MajorType.MAP, dataItems.get(0).getMajorType());
+        Map info = (Map) dataItems.get(0);
+        assertEquals(2, info.getKeys().size());
+        assertEquals(new UnicodeString(Build.FINGERPRINT),
+                     info.get(new UnicodeString("fingerprint")));
+        assertEquals(new UnsignedInteger(SettingsManager.getId(context)),
+                     info.get(new UnicodeString("id")));
+    }
+
+    @Test
+    public void testBuildProvisioningInfoInvalidatedWithId() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        SettingsManager.generateAndSetId(context);
+        byte[] provisioningInfo = CborUtils.buildProvisioningInfo(context);
+        // Clearing the preferences keeps the ID, so the cached info is still good.
+        SettingsManager.clearPreferences(context);
+        assertSame(provisioningInfo, CborUtils.buildProvisioningInfo(context));
+
+        // Drop the ID behind SettingsManager's back so that a new one is generated.
+        context.getSharedPreferences("com.android.remoteprovisioner.preferences",
+                                     Context.MODE_PRIVATE).edit().clear().commit();
+        SettingsManager.generateAndSetId(context);
+        Map info = (Map) new CborDecoder(new ByteArrayInputStream(
+                CborUtils.buildProvisioningInfo(context))).decode().get(0);
+        assertEquals(new UnsignedInteger(SettingsManager.getId(context)),
+                     info.get(new UnicodeString("id")));
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.CsrPipeline;
+import com.android.remoteprovisioner.RetryPolicy;
+import com.android.remoteprovisioner.SettingsManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class CsrPipelineTest {
+    private static final int TIMEOUT_SECONDS = 10;
+
+    private static Context sContext;
+
+    private ExecutorService mSubmitExecutor;
+
+    @BeforeClass
+    public static void init() {
+        sContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Before
+    public void setUp() {
+        SettingsManager.generateAndSetId(sContext);
+        RetryPolicy.recordSuccess(sContext);
+        mSubmitExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mSubmitExecutor.shutdownNow();
+        RetryPolicy.recordSuccess(sContext);
+    }
+
+    /**
+     * Stands in for keystore and the server. Like keystore, a CSR is built out of whichever keys
+     * are unsigned when it is asked for, and they only stop being unsigned once the certificates
+     * for them are stored.
+     *
+     * The server holds on to each batch until more keys have been generated, so that a batch only
+     * comes back once the pipeline has moved on to the next one, unless there is nothing left to
+     * generate.
+     */
+    private static class FakeKeystore implements CsrPipeline.Batch {
+        private final List<Integer> mUnsigned = new ArrayList<>();
+        private final Set<Integer> mSigned = new HashSet<>();
+        private final List<List<Integer>> mRequests = new ArrayList<>();
+        private final List<Integer> mKeysGeneratedAtRequest = new ArrayList<>();
+        private final int mKeysToGenerate;
+        private int mNextKey;
+        private int mKeysGenerated;
+        private int mEmptyRequests;
+        private int mKeysSignedTwice;
+        private int mOverlappedRequests;
+
+        FakeKeystore(int unsignedKeys, int keysToGenerate) {
+            for (int i = 0; i < unsignedKeys; i++) {
+                mUnsigned.add(mNextKey++);
+            }
+            mKeysToGenerate = keysToGenerate;
+        }
+
+        @Override
+        public synchronized void generateKeys(int numKeys) {
+            for (int i = 0; i < numKeys; i++) {
+                mUnsigned.add(mNextKey++);
+            }
+            mKeysGenerated += numKeys;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized byte[] generateCertificateRequest(int numKeys) {
+            if (mUnsigned.isEmpty()) {
+                mEmptyRequests++;
+                return null;
+            }
+            mRequests.add(new ArrayList<>(
+                    mUnsigned.subList(0, Math.min(numKeys, mUnsigned.size()))));
+            mKeysGeneratedAtRequest.add(mKeysGenerated);
+            return new byte[] {(byte) (mRequests.size() - 1)};
+        }
+
+        @Override
+        public synchronized int submitCertificateRequest(byte[] certificateRequest) {
+            int request = certificateRequest[0];
+            int keysGeneratedAtRequest = mKeysGeneratedAtRequest.get(request);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            try {
+                while (mKeysGenerated == keysGeneratedAtRequest
+                        && mKeysGenerated < mKeysToGenerate) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            if (mKeysGenerated > keysGeneratedAtRequest) {
+                mOverlappedRequests++;
+            }
+            List<Integer> keys = mRequests.get(request);
+            for (Integer key : keys) {
+                if (!mSigned.add(key)) {
+                    mKeysSignedTwice++;
+                }
+                mUnsigned.remove(key);
+            }
+            return keys.size();
+        }
+    }
+
+    @Presubmit
+    @Test
+    public void testEveryBatchSignsNewKeys() throws Exception {
+        FakeKeystore keystore = new FakeKeystore(0 /* unsignedKeys */, 60 /* keysToGenerate */);
+        assertTrue(CsrPipeline.provision(sContext, keystore, mSubmitExecutor,
+                60 /* keysToCertify */, 20 /* csrBatchSize */, 0 /* unsignedKeys */));
+        assertEquals(3, keystore.mRequests.size());
+        for (List<Integer> request : keystore.mRequests) {
+            assertEquals(20, request.size());
+        }
+        assertEquals(0, keystore.mEmptyRequests);
+        assertEquals(0, keystore.mKeysSignedTwice);
+        assertEquals(60, keystore.mSigned.size());
+        assertEquals(60, keystore.mKeysGenerated);
+        assertTrue(keystore.mUnsigned.isEmpty());
+    }
+
+    @Test
+    public void testKeysGeneratedWhileBatchInFlight() throws Exception {
+        FakeKeystore keystore = new FakeKeystore(0 /* unsignedKeys */, 60 /* keysToGenerate */);
+        assertTrue(CsrPipeline.provision(sContext, keystore, mSubmitExecutor,
+                60 /* keysToCertify */, 20 /* csrBatchSize */, 0 /* unsignedKeys */));
+        // The keys for the second and third batches were generated while the batch before them
+        // was out at the server.
+        assertEquals(2, keystore.mOverlappedRequests);
+    }
+
+    @Test
+    public void testExistingUnsignedKeysUsedFirst() throws Exception {
+        FakeKeystore keystore = new FakeKeystore(25 /* unsignedKeys */, 25 /* keysToGenerate */);
+        assertTrue(CsrPipeline.provision(sContext, keystore, mSubmitExecutor,
+                50 /* keysToCertify */, 20 /* csrBatchSize */, 25 /* unsignedKeys */));
+        assertEquals(3, keystore.mRequests.size());
+        assertEquals(25, keystore.mKeysGenerated);
+        assertEquals(50, keystore.mSigned.size());
+        assertEquals(0, keystore.mKeysSignedTwice);
+    }
+
+    @Test
+    public void testFailedRequestReportedIncomplete() throws Exception {
+        FakeKeystore keystore = new FakeKeystore(0 /* unsignedKeys */, 40 /* keysToGenerate */) {
+            @Override
+            public synchronized byte[] generateCertificateRequest(int numKeys) {
+                return null;
+            }
+        };
+        assertFalse(CsrPipeline.provision(sContext, keystore, mSubmitExecutor,
+                40 /* keysToCertify */, 20 /* csrBatchSize */, 0 /* unsignedKeys */));
+        assertEquals(2, RetryPolicy.getFailureCount(sContext, RetryPolicy.FAILURE_BINDER));
+    }
+}
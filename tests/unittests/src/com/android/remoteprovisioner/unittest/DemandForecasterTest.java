@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.security.remoteprovisioning.AttestationPoolStatus;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.DemandForecaster;
+import com.android.remoteprovisioner.GeekResponse;
+import com.android.remoteprovisioner.SettingsManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+
+@RunWith(AndroidJUnit4.class)
+public class DemandForecasterTest {
+    private static final int SEC_LEVEL = 1;
+    private static final long HOUR_MS = Duration.ofHours(1).toMillis();
+    private static final long START_MS = 1000000000000L;
+
+    private static Context sContext;
+
+    @BeforeClass
+    public static void init() {
+        sContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Before
+    public void setUp() {
+        SettingsManager.clearPreferences(sContext);
+        DemandForecaster.clear(sContext);
+    }
+
+    @After
+    public void tearDown() {
+        SettingsManager.clearPreferences(sContext);
+        DemandForecaster.clear(sContext);
+    }
+
+    private static AttestationPoolStatus pool(int attested, int unassigned) {
+        AttestationPoolStatus pool = new AttestationPoolStatus();
+        pool.attested = attested;
+        pool.unassigned = unassigned;
+        pool.total = attested;
+        return pool;
+    }
+
+    // Notifies the forecaster of keysPerHour key assignments every hour for the given hours.
+    private static long notifyHourly(long nowMs, int hours, int keysPerHour) {
+        for (int i = 0; i < hours; i++) {
+            nowMs += HOUR_MS;
+            for (int j = 0; j < keysPerHour; j++) {
+                DemandForecaster.recordKeyAssigned(sContext, SEC_LEVEL, nowMs);
+            }
+        }
+        return nowMs;
+    }
+
+    @Test
+    public void testPoissonQuantile() throws Exception {
+        assertEquals(0, DemandForecaster.poissonQuantile(0, 0.95));
+        // P(X <= 4) = 0.947 and P(X <= 5) = 0.983 for a mean of 2.
+        assertEquals(5, DemandForecaster.poissonQuantile(2, 0.95));
+        assertEquals(4, DemandForecaster.poissonQuantile(2, 0.90));
+        assertEquals(DemandForecaster.MAX_EXTRA_KEYS,
+                DemandForecaster.poissonQuantile(DemandForecaster.MAX_EXTRA_KEYS, 0.5));
+        assertEquals(DemandForecaster.MAX_EXTRA_KEYS,
+                DemandForecaster.poissonQuantile(95, 0.99));
+    }
+
+    @Test
+    public void testFallsBackWithoutEnoughHistory() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS);
+        notifyHourly(START_MS, 12 /* hours */, 1 /* keysPerHour */);
+        assertEquals(-1, DemandForecaster.getConsumptionRate(sContext, SEC_LEVEL), 0);
+        assertEquals(SettingsManager.EXTRA_SIGNED_KEYS_AVAILABLE_DEFAULT,
+                DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL));
+    }
+
+    @Test
+    public void testHeavyUseGrowsPool() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS);
+        notifyHourly(START_MS, 48 /* hours */, 1 /* keysPerHour */);
+        assertEquals(1, DemandForecaster.getConsumptionRate(sContext, SEC_LEVEL), 0.01);
+        // One key expected for every hour of the forecast horizon, however long the scheduler
+        // period is.
+        long expectedDemand = DemandForecaster.FORECAST_HORIZON.toHours();
+        int extra = DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL);
+        assertEquals(DemandForecaster.poissonQuantile(expectedDemand, 0.95), extra);
+        assertTrue(extra > expectedDemand);
+        SettingsManager.setPerformanceConfig(sContext, GeekResponse.NO_CSR_BATCH_SIZE_UPDATE,
+                null, null, Duration.ofHours(SettingsManager.SCHEDULER_PERIOD_HOURS_MAX), null,
+                null);
+        assertEquals(extra, DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL));
+    }
+
+    @Test
+    public void testLightUseShrinksPool() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS);
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS + 72 * HOUR_MS);
+        assertEquals(0, DemandForecaster.getConsumptionRate(sContext, SEC_LEVEL), 0);
+        assertEquals(DemandForecaster.MIN_EXTRA_KEYS,
+                DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL));
+    }
+
+    @Test
+    public void testSnapshotsCountUnnotifiedKeys() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(30, 30), START_MS);
+        // Only two of the 24 keys assigned over two days are notified, the snapshot catches the
+        // rest.
+        DemandForecaster.recordKeyAssigned(sContext, SEC_LEVEL, START_MS + 24 * HOUR_MS);
+        DemandForecaster.recordKeyAssigned(sContext, SEC_LEVEL, START_MS + 24 * HOUR_MS);
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(30, 6),
+                START_MS + 48 * HOUR_MS);
+        assertEquals(0.5, DemandForecaster.getConsumptionRate(sContext, SEC_LEVEL), 0.05);
+    }
+
+    @Test
+    public void testOldDemandDecays() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS);
+        long nowMs = notifyHourly(START_MS, 48 /* hours */, 4 /* keysPerHour */);
+        double busyRate = DemandForecaster.getConsumptionRate(sContext, SEC_LEVEL);
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6),
+                nowMs + DemandForecaster.DECAY_TIME.toMillis() * 3);
+        assertTrue(DemandForecaster.getConsumptionRate(sContext, SEC_LEVEL) < busyRate / 4);
+    }
+
+    @Test
+    public void testProvisioningTurnedOff() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS);
+        notifyHourly(START_MS, 48 /* hours */, 1 /* keysPerHour */);
+        SettingsManager.setDeviceConfig(sContext, 0 /* extraKeys */, null, null);
+        assertEquals(0, DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL));
+    }
+
+    @Test
+    public void testConfidenceChangesSize() throws Exception {
+        DemandForecaster.recordPoolStatus(sContext, SEC_LEVEL, pool(6, 6), START_MS);
+        notifyHourly(START_MS, 48 /* hours */, 1 /* keysPerHour */);
+        int extra = DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL);
+        SettingsManager.setDemandConfidence(sContext,
+                SettingsManager.DEMAND_CONFIDENCE_PERCENT_MIN);
+        assertTrue(DemandForecaster.getExtraSignedKeysAvailable(sContext, SEC_LEVEL) < extra);
+    }
+}
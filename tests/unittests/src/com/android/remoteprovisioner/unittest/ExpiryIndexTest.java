@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.ExpiryIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+
+@RunWith(AndroidJUnit4.class)
+public class ExpiryIndexTest {
+    private static final long NOW_MS = Duration.ofDays(19000).toMillis();
+    private static final Duration EXPIRING_BY = Duration.ofDays(3);
+    private static final Duration MAX_INTERVAL = Duration.ofDays(7);
+
+    private static Context sContext;
+
+    @BeforeClass
+    public static void init() {
+        sContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Before
+    public void setUp() {
+        ExpiryIndex.clear(sContext);
+    }
+
+    @After
+    public void tearDown() {
+        ExpiryIndex.clear(sContext);
+    }
+
+    private static void record(Duration... fromNow) {
+        long[] expirationDates = new long[fromNow.length];
+        for (int i = 0; i < fromNow.length; i++) {
+            expirationDates[i] = NOW_MS + fromNow[i].toMillis();
+        }
+        ExpiryIndex.recordExpirations(sContext, expirationDates, fromNow.length, NOW_MS);
+    }
+
+    private static Duration nextCheckDelay(long nowMs) {
+        return ExpiryIndex.getNextCheckDelay(sContext, nowMs, EXPIRING_BY, MAX_INTERVAL);
+    }
+
+    @Test
+    public void testEmptyIndexUsesMaxInterval() throws Exception {
+        assertEquals(-1, ExpiryIndex.getEarliestExpirationAfter(sContext, NOW_MS));
+        assertEquals(MAX_INTERVAL, nextCheckDelay(NOW_MS));
+    }
+
+    @Test
+    public void testScheduledWhenKeysEnterWindow() throws Exception {
+        record(Duration.ofDays(8), Duration.ofDays(30));
+        assertEquals(Duration.ofDays(5), nextCheckDelay(NOW_MS));
+    }
+
+    @Test
+    public void testDelayBoundedByMaxInterval() throws Exception {
+        record(Duration.ofDays(30));
+        assertEquals(MAX_INTERVAL, nextCheckDelay(NOW_MS));
+    }
+
+    @Test
+    public void testUncheckedKeysInsideWindowAreDue() throws Exception {
+        record(Duration.ofDays(1), Duration.ofDays(6));
+        assertEquals(Duration.ZERO, nextCheckDelay(NOW_MS));
+    }
+
+    @Test
+    public void testCheckedKeysAreIgnored() throws Exception {
+        record(Duration.ofDays(1), Duration.ofDays(6));
+        ExpiryIndex.setCheckedUntil(sContext, NOW_MS + EXPIRING_BY.toMillis());
+        assertEquals(Duration.ofDays(3), nextCheckDelay(NOW_MS));
+    }
+
+    @Test
+    public void testKeysBeyondShorterCheckAreDue() throws Exception {
+        // A run on a metered connection only checks keys expiring within a day.
+        record(Duration.ofDays(2), Duration.ofDays(6));
+        ExpiryIndex.setCheckedUntil(sContext, NOW_MS + Duration.ofDays(1).toMillis());
+        assertEquals(Duration.ZERO, nextCheckDelay(NOW_MS));
+    }
+
+    @Test
+    public void testNeverLate() throws Exception {
+        Duration expiry = Duration.ofDays(5).plusMinutes(59);
+        record(expiry, expiry.plusSeconds(10));
+        Duration delay = nextCheckDelay(NOW_MS);
+        assertTrue(delay.compareTo(expiry.minus(EXPIRING_BY)) <= 0);
+        assertTrue(delay.compareTo(expiry.minus(EXPIRING_BY).minusHours(1)) >= 0);
+    }
+
+    @Test
+    public void testPassedExpirationsAreDropped() throws Exception {
+        record(Duration.ofDays(4), Duration.ofDays(40));
+        long later = NOW_MS + Duration.ofDays(5).toMillis();
+        assertEquals(NOW_MS + Duration.ofDays(40).toMillis(),
+                ExpiryIndex.getEarliestExpirationAfter(sContext, later));
+    }
+
+    @Test
+    public void testSizeIsBounded() throws Exception {
+        Duration[] expiries = new Duration[ExpiryIndex.MAX_ENTRIES * 2];
+        for (int i = 0; i < expiries.length; i++) {
+            expiries[i] = Duration.ofDays(10).plusHours(i);
+        }
+        record(expiries);
+        // The earliest entries are the ones kept.
+        assertEquals(NOW_MS + Duration.ofDays(10).toMillis(),
+                ExpiryIndex.getEarliestExpirationAfter(sContext, NOW_MS));
+        long afterKept =
+                NOW_MS + expiries[ExpiryIndex.MAX_ENTRIES - 1].plusHours(1).toMillis();
+        assertEquals(-1, ExpiryIndex.getEarliestExpirationAfter(sContext, afterKept));
+    }
+}
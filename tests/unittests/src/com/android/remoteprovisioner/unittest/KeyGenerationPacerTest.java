@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.KeyGenerationPacer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class KeyGenerationPacerTest {
+
+    @Presubmit
+    @Test
+    public void testInitialPauseIsClamped() throws Exception {
+        assertEquals(1000, new KeyGenerationPacer(1000).getPauseMillis());
+        assertEquals(KeyGenerationPacer.MIN_PAUSE_MS, new KeyGenerationPacer(0).getPauseMillis());
+        assertEquals(KeyGenerationPacer.MAX_PAUSE_MS,
+                new KeyGenerationPacer(Long.MAX_VALUE / 2).getPauseMillis());
+    }
+
+    @Presubmit
+    @Test
+    public void testFastKeystoreSpeedsUp() throws Exception {
+        KeyGenerationPacer pacer = new KeyGenerationPacer(1000);
+        long totalPauseMs = 0;
+        for (int i = 0; i < 20; i++) {
+            pacer.onKeyGenerated(10 /* latencyMs */);
+            totalPauseMs += pacer.getPauseMillis();
+        }
+        assertEquals(KeyGenerationPacer.MIN_PAUSE_MS, pacer.getPauseMillis());
+        // A fixed pause would have slept for 20 seconds.
+        assertTrue("Paused for " + totalPauseMs + "ms", totalPauseMs < 5000);
+    }
+
+    @Presubmit
+    @Test
+    public void testPauseNeverShorterThanUsualLatency() throws Exception {
+        KeyGenerationPacer pacer = new KeyGenerationPacer(1000);
+        for (int i = 0; i < 20; i++) {
+            pacer.onKeyGenerated(1500 /* latencyMs */);
+        }
+        assertEquals(1500, pacer.getPauseMillis());
+    }
+
+    @Presubmit
+    @Test
+    public void testConfiguredPauseChangeRestartsPacing() throws Exception {
+        KeyGenerationPacer pacer = new KeyGenerationPacer(1000);
+        pacer.onKeyGenerated(10 /* latencyMs */);
+        long pauseMs = pacer.getPauseMillis();
+        assertTrue(pauseMs < 1000);
+        // The same configured pause leaves the adapted pause alone.
+        pacer.setConfiguredPause(1000);
+        assertEquals(pauseMs, pacer.getPauseMillis());
+        pacer.setConfiguredPause(3000);
+        assertEquals(3000, pacer.getPauseMillis());
+    }
+
+    @Presubmit
+    @Test
+    public void testSlowKeyBacksOff() throws Exception {
+        KeyGenerationPacer pacer = new KeyGenerationPacer(KeyGenerationPacer.MIN_PAUSE_MS);
+        pacer.onKeyGenerated(10 /* latencyMs */);
+        long pauseMs = pacer.getPauseMillis();
+        pacer.onKeyGenerated(10 * KeyGenerationPacer.CONGESTION_FACTOR + 1 /* latencyMs */);
+        assertEquals(KeyGenerationPacer.DECREASE_STEP_MS, pacer.getPauseMillis());
+        pacer.onKeyGenerated(1000 /* latencyMs */);
+        assertTrue(pacer.getPauseMillis() > pauseMs);
+    }
+
+    @Presubmit
+    @Test
+    public void testFailureBacksOffUpToCeiling() throws Exception {
+        KeyGenerationPacer pacer = new KeyGenerationPacer(1000);
+        pacer.onKeyGenerationFailed();
+        assertEquals(2000, pacer.getPauseMillis());
+        for (int i = 0; i < 10; i++) {
+            pacer.onKeyGenerationFailed();
+        }
+        assertEquals(KeyGenerationPacer.MAX_PAUSE_MS, pacer.getPauseMillis());
+    }
+
+    @Presubmit
+    @Test
+    public void testRecoversAfterBackOff() throws Exception {
+        KeyGenerationPacer pacer = new KeyGenerationPacer(1000);
+        pacer.onKeyGenerated(10 /* latencyMs */);
+        pacer.onKeyGenerationFailed();
+        long backedOffMs = pacer.getPauseMillis();
+        pacer.onKeyGenerated(10 /* latencyMs */);
+        assertEquals(backedOffMs - KeyGenerationPacer.DECREASE_STEP_MS, pacer.getPauseMillis());
+    }
+}
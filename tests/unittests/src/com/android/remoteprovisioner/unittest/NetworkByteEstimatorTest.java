@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.NetworkByteEstimator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class NetworkByteEstimatorTest {
+    private static Context sContext;
+
+    @BeforeClass
+    public static void init() {
+        sContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Before
+    public void setUp() {
+        NetworkByteEstimator.clear(sContext);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkByteEstimator.clear(sContext);
+    }
+
+    @Presubmit
+    @Test
+    public void testNoEstimateUntilBothCallsSeen() throws Exception {
+        assertEquals(-1, NetworkByteEstimator.estimateUploadBytes(sContext, 10));
+        assertEquals(-1, NetworkByteEstimator.estimateDownloadBytes(sContext, 10));
+        NetworkByteEstimator.recordGeekCall(sContext, 100, 2000);
+        assertEquals(-1, NetworkByteEstimator.estimateUploadBytes(sContext, 10));
+        assertEquals(-1, NetworkByteEstimator.estimateDownloadBytes(sContext, 10));
+    }
+
+    @Presubmit
+    @Test
+    public void testEstimateScalesWithKeys() throws Exception {
+        NetworkByteEstimator.recordGeekCall(sContext, 100 /* uploadBytes */,
+                2000 /* downloadBytes */);
+        NetworkByteEstimator.recordSignCall(sContext, 4 /* numKeys */, 800 /* uploadBytes */,
+                3000 /* downloadBytes */, 2400 /* uniqueBytes */);
+        assertEquals(100 + 200 * 10, NetworkByteEstimator.estimateUploadBytes(sContext, 10));
+        assertEquals(2000 + 600 + 600 * 10,
+                NetworkByteEstimator.estimateDownloadBytes(sContext, 10));
+    }
+
+    @Presubmit
+    @Test
+    public void testEstimateFollowsObservations() throws Exception {
+        NetworkByteEstimator.recordGeekCall(sContext, 100, 2000);
+        NetworkByteEstimator.recordSignCall(sContext, 1, 200, 1000, 500);
+        long initial = NetworkByteEstimator.estimateDownloadBytes(sContext, 1);
+        for (int i = 0; i < 20; i++) {
+            NetworkByteEstimator.recordSignCall(sContext, 1, 200, 1500, 1000);
+        }
+        long grown = NetworkByteEstimator.estimateDownloadBytes(sContext, 1);
+        assertTrue(grown > initial);
+        assertTrue(Math.abs(grown - (2000 + 1500)) < 10);
+    }
+
+    @Presubmit
+    @Test
+    public void testEmptySignCallIgnored() throws Exception {
+        NetworkByteEstimator.recordGeekCall(sContext, 100, 2000);
+        NetworkByteEstimator.recordSignCall(sContext, 0, 200, 1000, 0);
+        assertEquals(-1, NetworkByteEstimator.estimateUploadBytes(sContext, 1));
+    }
+}
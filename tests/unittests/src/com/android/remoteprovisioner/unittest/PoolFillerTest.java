@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.RemoteException;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.service.PoolFiller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class PoolFillerTest {
+    private static final int TIMEOUT_SECONDS = 10;
+
+    private ExecutorService mFillExecutor;
+
+    @Before
+    public void setUp() {
+        mFillExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        mFillExecutor.shutdownNow();
+    }
+
+    private static int awaitResult(CompletableFuture<Integer> fill) throws Exception {
+        return fill.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.nanoTime() > deadline) {
+                fail("Thread never started waiting");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static Thread startFill(PoolFiller filler, int secLevel, List<Integer> results) {
+        Thread thread = new Thread(() -> {
+            try {
+                int provisioned = filler.fillPool(secLevel);
+                synchronized (results) {
+                    results.add(provisioned);
+                }
+            } catch (RemoteException e) {
+                synchronized (results) {
+                    results.add(-1);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Presubmit
+    @Test
+    public void testConcurrentCallersShareOneFill() throws Exception {
+        AtomicInteger fills = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        PoolFiller filler = new PoolFiller(secLevel -> {
+            fills.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return 5;
+        }, mFillExecutor);
+        List<Integer> results = new ArrayList<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Thread caller = startFill(filler, 1 /* secLevel */, results);
+            awaitWaiting(caller);
+            callers.add(caller);
+        }
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertEquals(1, fills.get());
+        assertEquals(5, results.size());
+        for (int provisioned : results) {
+            assertEquals(5, provisioned);
+        }
+        // The fill is over, so the next caller starts a new one.
+        assertEquals(5, filler.fillPool(1 /* secLevel */));
+        assertEquals(2, fills.get());
+    }
+
+    @Presubmit
+    @Test
+    public void testSequentialCallsFillEachTime() throws Exception {
+        AtomicInteger fills = new AtomicInteger();
+        PoolFiller filler = new PoolFiller(secLevel -> fills.incrementAndGet(), mFillExecutor);
+        assertEquals(1, filler.fillPool(1 /* secLevel */));
+        assertEquals(2, filler.fillPool(1 /* secLevel */));
+        assertEquals(2, fills.get());
+    }
+
+    @Presubmit
+    @Test
+    public void testSecurityLevelsFillIndependently() throws Exception {
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        PoolFiller filler = new PoolFiller(secLevel -> {
+            bothStarted.countDown();
+            try {
+                // Only completes if the other security level's fill runs concurrently.
+                if (!bothStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    return -1;
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return secLevel;
+        }, mFillExecutor);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> tee = executor.submit(() -> filler.fillPool(1 /* secLevel */));
+            Future<Integer> strongBox = executor.submit(() -> filler.fillPool(2 /* secLevel */));
+            assertEquals(1, (int) tee.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(2, (int) strongBox.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Presubmit
+    @Test
+    public void testFailureIsSharedAndNotRemembered() throws Exception {
+        RemoteException failure = new RemoteException();
+        AtomicInteger fills = new AtomicInteger();
+        PoolFiller filler = new PoolFiller(secLevel -> {
+            if (fills.incrementAndGet() == 1) {
+                throw failure;
+            }
+            return 3;
+        }, mFillExecutor);
+        try {
+            filler.fillPool(1 /* secLevel */);
+            fail("Fill should have failed");
+        } catch (RemoteException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(3, filler.fillPool(1 /* secLevel */));
+    }
+
+    @Presubmit
+    @Test
+    public void testRequestFillDoesNotWait() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PoolFiller filler = new PoolFiller(secLevel -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return 4;
+        }, mFillExecutor);
+        CompletableFuture<Integer> fill = filler.requestFill(1 /* secLevel */);
+        assertFalse(fill.isDone());
+        assertSame(fill, filler.requestFill(1 /* secLevel */));
+        release.countDown();
+        assertEquals(4, awaitResult(fill));
+        CompletableFuture<Integer> nextFill = filler.requestFill(1 /* secLevel */);
+        assertNotSame(fill, nextFill);
+        assertEquals(4, awaitResult(nextFill));
+    }
+
+    @Test
+    public void testFillPoolReturnsOnceFilled() throws Exception {
+        AtomicInteger pool = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        PoolFiller filler = new PoolFiller(secLevel -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return pool.addAndGet(5);
+        }, mFillExecutor);
+        // Keystore retries as soon as a fill of an empty pool returns, so the keys must be there
+        // by then, even when the call joins a fill that was only queued.
+        CompletableFuture<Integer> queued = filler.requestFill(1 /* secLevel */);
+        List<Integer> results = new ArrayList<>();
+        Thread caller = startFill(filler, 1 /* secLevel */, results);
+        awaitWaiting(caller);
+        assertEquals(0, pool.get());
+        release.countDown();
+        caller.join();
+        assertEquals(1, results.size());
+        assertEquals(5, (int) results.get(0));
+        assertEquals(5, awaitResult(queued));
+    }
+
+    @Presubmit
+    @Test
+    public void testRequestFillAfterShutdown() throws Exception {
+        PoolFiller filler = new PoolFiller(secLevel -> 1, mFillExecutor);
+        mFillExecutor.shutdown();
+        CompletableFuture<Integer> fill = filler.requestFill(1 /* secLevel */);
+        try {
+            awaitResult(fill);
+            fail("Fill should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        // The rejected fill is not left in flight for later callers to join.
+        assertNotSame(fill, filler.requestFill(1 /* secLevel */));
+    }
+}
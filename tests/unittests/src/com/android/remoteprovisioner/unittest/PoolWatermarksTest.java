@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.DemandForecaster;
+import com.android.remoteprovisioner.GeekResponse;
+import com.android.remoteprovisioner.PoolWatermarks;
+import com.android.remoteprovisioner.SettingsManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+@RunWith(AndroidJUnit4.class)
+public class PoolWatermarksTest {
+    private static final int TEE = 1;
+    private static final int STRONGBOX = 2;
+
+    private static Context sContext;
+
+    @BeforeClass
+    public static void init() {
+        sContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Before
+    public void setUp() {
+        SettingsManager.clearPreferences(sContext);
+        DemandForecaster.clear(sContext);
+    }
+
+    @After
+    public void tearDown() {
+        SettingsManager.clearPreferences(sContext);
+        DemandForecaster.clear(sContext);
+    }
+
+    @Test
+    public void testDefaultsFollowExtraKeys() throws Exception {
+        PoolWatermarks marks = PoolWatermarks.get(sContext, TEE);
+        assertEquals(SettingsManager.EXTRA_SIGNED_KEYS_AVAILABLE_DEFAULT, marks.high);
+        assertEquals(2, marks.low);
+        SettingsManager.setDeviceConfig(sContext, 1 /* extraKeys */, null, null);
+        marks = PoolWatermarks.get(sContext, TEE);
+        assertEquals(1, marks.high);
+        assertEquals(1, marks.low);
+    }
+
+    @Test
+    public void testRefillWithHysteresis() throws Exception {
+        PoolWatermarks marks = new PoolWatermarks(3 /* low */, 10 /* high */);
+        assertEquals(0, marks.keysToRefill(10));
+        assertEquals(0, marks.keysToRefill(3));
+        assertEquals(8, marks.keysToRefill(2));
+        assertEquals(10, marks.keysToRefill(0));
+    }
+
+    @Test
+    public void testProvisioningTurnedOff() throws Exception {
+        SettingsManager.setDeviceConfig(sContext, 0 /* extraKeys */, null, null);
+        assertEquals(0, PoolWatermarks.get(sContext, TEE).keysToRefill(0));
+    }
+
+    @Test
+    public void testConfiguredPerSecurityLevel() throws Exception {
+        SettingsManager.setPerformanceConfig(sContext, GeekResponse.NO_CSR_BATCH_SIZE_UPDATE,
+                null, null, null, null, Collections.singletonMap(STRONGBOX, new int[] {1, 3}));
+        PoolWatermarks strongBox = PoolWatermarks.get(sContext, STRONGBOX);
+        assertEquals(1, strongBox.low);
+        assertEquals(3, strongBox.high);
+        PoolWatermarks tee = PoolWatermarks.get(sContext, TEE);
+        assertEquals(SettingsManager.EXTRA_SIGNED_KEYS_AVAILABLE_DEFAULT, tee.high);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.ProvisioningJournal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ProvisioningJournalTest {
+
+    private static final int SEC_LEVEL = 1;
+    private static final byte[] RESPONSE_1 = new byte[] {0x01, 0x02, 0x03};
+    private static final byte[] RESPONSE_2 = new byte[] {0x04, 0x05, 0x06, 0x07};
+    private static final byte[] RESPONSE_3 = new byte[] {0x08};
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(ApplicationProvider.getApplicationContext().getNoBackupFilesDir(),
+                         "provisioning_journal_test");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testRecoveredAfterRestart() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(mFile);
+        int id = journal.recordResponse(SEC_LEVEL, 3 /* numChains */, RESPONSE_1);
+        journal.recordCommitted(id, bits(0));
+        assertTrue("Responses recorded by this process must not be replayed",
+                   journal.claimRecovered().isEmpty());
+
+        ProvisioningJournal restarted = new ProvisioningJournal(mFile);
+        List<ProvisioningJournal.PendingResponse> pending = restarted.claimRecovered();
+        assertEquals(1, pending.size());
+        assertEquals(SEC_LEVEL, pending.get(0).secLevel);
+        assertEquals(3, pending.get(0).numChains);
+        assertArrayEquals(RESPONSE_1, pending.get(0).response);
+        assertEquals(bits(0), pending.get(0).committed);
+        assertTrue("Recovered responses must only be claimed once",
+                   restarted.claimRecovered().isEmpty());
+    }
+
+    @Test
+    public void testCompactDropsCompletedResponses() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(mFile);
+        int id1 = journal.recordResponse(SEC_LEVEL, 2 /* numChains */, RESPONSE_1);
+        int id2 = journal.recordResponse(SEC_LEVEL, 4 /* numChains */, RESPONSE_2);
+        journal.recordCommitted(id1, bits(0, 1));
+        journal.recordCommitted(id2, bits(0, 2));
+        journal.compact();
+
+        List<ProvisioningJournal.PendingResponse> pending =
+                new ProvisioningJournal(mFile).claimRecovered();
+        assertEquals(1, pending.size());
+        assertArrayEquals(RESPONSE_2, pending.get(0).response);
+        assertEquals(bits(0, 2), pending.get(0).committed);
+
+        journal.recordCommitted(id2, bits(1, 3));
+        journal.compact();
+        assertFalse("An empty journal should be deleted", mFile.exists());
+    }
+
+    @Test
+    public void testPoisonedChainsNotReplayed() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(mFile);
+        int id = journal.recordResponse(SEC_LEVEL, 4 /* numChains */, RESPONSE_1);
+        journal.recordCommitted(id, bits(0));
+        journal.recordPoisoned(id, bits(1, 2));
+
+        List<ProvisioningJournal.PendingResponse> pending =
+                new ProvisioningJournal(mFile).claimRecovered();
+        assertEquals(1, pending.size());
+        assertEquals(bits(0), pending.get(0).committed);
+        assertEquals(bits(1, 2), pending.get(0).poisoned);
+        assertEquals(bits(0, 1, 2), pending.get(0).getHandled());
+
+        journal.recordPoisoned(id, bits(3));
+        journal.compact();
+        assertFalse("A response with every chain committed or poisoned should be dropped",
+                    mFile.exists());
+    }
+
+    @Test
+    public void testReleasedResponseReplayedInProcess() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(mFile);
+        int id = journal.recordResponse(SEC_LEVEL, 2 /* numChains */, RESPONSE_1);
+        // The second chain failed to store, so it is left to be replayed.
+        journal.recordCommitted(id, bits(0));
+        journal.release(id);
+
+        List<ProvisioningJournal.PendingResponse> pending = journal.claimRecovered();
+        assertEquals(1, pending.size());
+        assertEquals(bits(0), pending.get(0).getHandled());
+        assertTrue("Released responses must only be claimed once",
+                   journal.claimRecovered().isEmpty());
+    }
+
+    @Test
+    public void testTornRecordDropped() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(mFile);
+        journal.recordResponse(SEC_LEVEL, 1 /* numChains */, RESPONSE_1);
+        journal.recordResponse(SEC_LEVEL, 1 /* numChains */, RESPONSE_2);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+
+        ProvisioningJournal restarted = new ProvisioningJournal(mFile);
+        restarted.recordResponse(SEC_LEVEL, 1 /* numChains */, RESPONSE_3);
+        List<ProvisioningJournal.PendingResponse> pending =
+                new ProvisioningJournal(mFile).claimRecovered();
+        assertEquals(2, pending.size());
+        assertArrayEquals(RESPONSE_1, pending.get(0).response);
+        assertArrayEquals(RESPONSE_3, pending.get(1).response);
+    }
+
+    @Test
+    public void testCorruptRecordDropped() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(mFile);
+        journal.recordResponse(SEC_LEVEL, 1 /* numChains */, RESPONSE_1);
+        journal.recordResponse(SEC_LEVEL, 1 /* numChains */, RESPONSE_2);
+        byte[] contents = Files.readAllBytes(mFile.toPath());
+        int last = indexOf(contents, RESPONSE_2);
+        contents[last] ^= 0x01;
+        Files.write(mFile.toPath(), contents);
+
+        List<ProvisioningJournal.PendingResponse> pending =
+                new ProvisioningJournal(mFile).claimRecovered();
+        assertEquals(1, pending.size());
+        assertArrayEquals(RESPONSE_1, pending.get(0).response);
+    }
+
+    private static BitSet bits(int... indices) {
+        BitSet bits = new BitSet();
+        for (int i : indices) {
+            bits.set(i);
+        }
+        return bits;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        for (int i = haystack.length - needle.length; i >= 0; i--) {
+            if (Arrays.equals(Arrays.copyOfRange(haystack, i, i + needle.length), needle)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not found");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.RetryPolicy;
+import com.android.remoteprovisioner.SettingsManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+
+@RunWith(AndroidJUnit4.class)
+public class RetryPolicyTest {
+    private static Context sContext;
+
+    @BeforeClass
+    public static void init() {
+        sContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Before
+    public void setUp() {
+        SettingsManager.generateAndSetId(sContext);
+        RetryPolicy.recordSuccess(sContext);
+    }
+
+    @After
+    public void tearDown() {
+        RetryPolicy.recordSuccess(sContext);
+    }
+
+    @Presubmit
+    @Test
+    public void testNoRetryWithoutFailure() throws Exception {
+        assertNull(RetryPolicy.getRetryDelay(sContext));
+        assertEquals(0, RetryPolicy.getServerFailureCount(sContext));
+    }
+
+    @Presubmit
+    @Test
+    public void testClassifyResponseCode() throws Exception {
+        assertEquals(RetryPolicy.FAILURE_SERVER_ERROR, RetryPolicy.classifyResponseCode(503));
+        assertEquals(RetryPolicy.FAILURE_CLIENT_ERROR, RetryPolicy.classifyResponseCode(404));
+    }
+
+    @Test
+    public void testClassifyException() throws Exception {
+        assertEquals(RetryPolicy.FAILURE_CLIENT_ERROR,
+                RetryPolicy.classifyException(new MalformedURLException()));
+        assertEquals(RetryPolicy.FAILURE_CLIENT_ERROR,
+                RetryPolicy.classifyException(new UnknownHostException()));
+        assertEquals(RetryPolicy.FAILURE_TIMEOUT,
+                RetryPolicy.classifyException(new SocketTimeoutException()));
+        assertEquals(RetryPolicy.FAILURE_TIMEOUT,
+                RetryPolicy.classifyException(new ConnectException()));
+    }
+
+    @Presubmit
+    @Test
+    public void testDelayGrowsUpToCap() throws Exception {
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_TIMEOUT);
+        Duration first = RetryPolicy.getRetryDelay(sContext);
+        assertTrue(first.compareTo(Duration.ofSeconds(30)) >= 0);
+        assertTrue(first.compareTo(Duration.ofMinutes(1)) <= 0);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_TIMEOUT);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_TIMEOUT);
+        Duration third = RetryPolicy.getRetryDelay(sContext);
+        assertTrue(third.compareTo(Duration.ofMinutes(2)) >= 0);
+        assertTrue(third.compareTo(Duration.ofMinutes(4)) <= 0);
+        for (int i = 0; i < 300; i++) {
+            RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_TIMEOUT);
+        }
+        Duration capped = RetryPolicy.getRetryDelay(sContext);
+        assertTrue(capped.compareTo(Duration.ofMinutes(30)) >= 0);
+        assertTrue(capped.compareTo(Duration.ofHours(1)) <= 0);
+    }
+
+    @Presubmit
+    @Test
+    public void testClassesCountedSeparately() throws Exception {
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_SERVER_ERROR);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_SERVER_ERROR);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_BINDER);
+        assertEquals(2, RetryPolicy.getFailureCount(sContext, RetryPolicy.FAILURE_SERVER_ERROR));
+        assertEquals(1, RetryPolicy.getFailureCount(sContext, RetryPolicy.FAILURE_BINDER));
+        assertEquals(0, RetryPolicy.getFailureCount(sContext, RetryPolicy.FAILURE_TIMEOUT));
+        // Binder failures don't count towards resetting the settings.
+        assertEquals(2, RetryPolicy.getServerFailureCount(sContext));
+        // The delay follows the most recent failure, a binder one.
+        assertTrue(RetryPolicy.getRetryDelay(sContext).compareTo(Duration.ofSeconds(30)) <= 0);
+    }
+
+    @Test
+    public void testServerSuccessResetsServerClasses() throws Exception {
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_TIMEOUT);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_SERVER_ERROR);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_CLIENT_ERROR);
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_BINDER);
+        RetryPolicy.recordServerSuccess(sContext);
+        assertEquals(0, RetryPolicy.getServerFailureCount(sContext));
+        // Keystore failing is not fixed by the server answering.
+        assertEquals(1, RetryPolicy.getFailureCount(sContext, RetryPolicy.FAILURE_BINDER));
+        assertNotNull(RetryPolicy.getRetryDelay(sContext));
+    }
+
+    @Presubmit
+    @Test
+    public void testSuccessResets() throws Exception {
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_CLIENT_ERROR);
+        RetryPolicy.recordSuccess(sContext);
+        assertNull(RetryPolicy.getRetryDelay(sContext));
+        assertEquals(0, RetryPolicy.getServerFailureCount(sContext));
+    }
+
+    @Presubmit
+    @Test
+    public void testSurvivesSettingsReset() throws Exception {
+        RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_SERVER_ERROR);
+        SettingsManager.clearPreferences(sContext);
+        assertEquals(1, RetryPolicy.getFailureCount(sContext, RetryPolicy.FAILURE_SERVER_ERROR));
+    }
+}
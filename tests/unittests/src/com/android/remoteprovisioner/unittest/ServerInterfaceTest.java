@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.remoteprovisioner.unittest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.remoteprovisioner.ServerInterface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class ServerInterfaceTest {
+    private static final int MAX_RESPONSE_BYTES = 4096;
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    @Presubmit
+    @Test
+    public void testReadResponseWithinLimit() throws Exception {
+        byte[] body = body(MAX_RESPONSE_BYTES);
+        assertArrayEquals(body, ServerInterface.readResponse(new ByteArrayInputStream(body),
+                body.length, MAX_RESPONSE_BYTES));
+        // The server is not required to declare the length.
+        assertArrayEquals(body, ServerInterface.readResponse(new ByteArrayInputStream(body),
+                -1 /* declaredLength */, MAX_RESPONSE_BYTES));
+    }
+
+    @Test
+    public void testReadResponseRejectsDeclaredOversizedBody() throws Exception {
+        InputStream unread = new ByteArrayInputStream(body(MAX_RESPONSE_BYTES + 1));
+        assertNull(ServerInterface.readResponse(unread, MAX_RESPONSE_BYTES + 1,
+                MAX_RESPONSE_BYTES));
+        // The body is rejected without reading any of it.
+        assertEquals(MAX_RESPONSE_BYTES + 1, unread.available());
+    }
+
+    @Test
+    public void testReadResponseRejectsUndeclaredOversizedBody() throws Exception {
+        assertNull(ServerInterface.readResponse(
+                new ByteArrayInputStream(body(MAX_RESPONSE_BYTES + 1)), -1 /* declaredLength */,
+                MAX_RESPONSE_BYTES));
+        // A server that understates the length is caught as the body is read.
+        assertNull(ServerInterface.readResponse(
+                new ByteArrayInputStream(body(MAX_RESPONSE_BYTES * 4)), 16 /* declaredLength */,
+                MAX_RESPONSE_BYTES));
+    }
+}
@@ -24,6 +24,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -38,6 +39,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.remoteprovisioner.GeekResponse;
 import com.android.remoteprovisioner.Provisioner;
+import com.android.remoteprovisioner.RetryPolicy;
 import com.android.remoteprovisioner.ServerInterface;
 import com.android.remoteprovisioner.SettingsManager;
 
@@ -107,6 +109,7 @@ public class ServerToSystemTest {
     @Before
     public void setUp() throws Exception {
         SettingsManager.clearPreferences(sContext);
+        RetryPolicy.recordSuccess(sContext);
         sBinder.deleteAllKeys();
         mDuration = Duration.ofMillis(System.currentTimeMillis());
     }
@@ -114,6 +117,7 @@ public class ServerToSystemTest {
     @After
     public void tearDown() throws Exception {
         SettingsManager.clearPreferences(sContext);
+        RetryPolicy.recordSuccess(sContext);
         sBinder.deleteAllKeys();
     }
 
@@ -137,6 +141,23 @@ public class ServerToSystemTest {
                          numTestKeys, mDuration.plusDays(180));
     }
 
+    @Test
+    public void testServerAnswerEndsFailureStreak() throws Exception {
+        SettingsManager.setDeviceConfig(sContext, 7 /* extraKeys */, mDuration /* expiringBy */,
+                                        SettingsManager.getUrl(sContext));
+        for (int i = 0; i < 5; i++) {
+            RetryPolicy.recordFailure(sContext, RetryPolicy.FAILURE_TIMEOUT);
+        }
+        assertNotNull(ServerInterface.fetchGeek(sContext));
+        assertEquals(0, RetryPolicy.getServerFailureCount(sContext));
+        // The server rejects a challenge it never issued, and that failure starts a new streak
+        // rather than being the sixth in a row.
+        assertNull(ServerInterface.requestSignedCertificates(sContext, new byte[0] /* csr */,
+                                                             new byte[16] /* challenge */));
+        assertEquals(1, RetryPolicy.getServerFailureCount(sContext));
+        assertEquals(7, SettingsManager.getExtraSignedKeysAvailable(sContext));
+    }
+
     @Test
     public void testFallback() throws Exception {
         // Feed a fake URL into the device config to ensure that remote provisioning fails.
@@ -161,11 +182,12 @@ public class ServerToSystemTest {
 
         SettingsManager.setDeviceConfig(sContext, 2 /* extraKeys */, mDuration /* expiringBy */,
                                         "Not even a URL" /* url */);
+        int serverFailures = RetryPolicy.getServerFailureCount(sContext);
         // Even if there is an unsigned key hanging around, fallback should still occur.
         Certificate[] fallbackKeyCerts2 = generateKeyStoreKey("test3");
         // Due to there being no attested keys in the pool, the provisioning service should not
         // have even attempted to provision more certificates.
-        assertEquals(0, SettingsManager.getFailureCounter(sContext));
+        assertEquals(serverFailures, RetryPolicy.getServerFailureCount(sContext));
         assertTrue(fallbackKeyCerts1.length == fallbackKeyCerts2.length);
         for (int i = 1; i < fallbackKeyCerts1.length; i++) {
             assertArrayEquals("Cert: " + i, fallbackKeyCerts1[i].getEncoded(),
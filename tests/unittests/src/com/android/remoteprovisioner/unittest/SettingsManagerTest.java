@@ -17,6 +17,7 @@
 package com.android.remoteprovisioner.unittest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -24,6 +25,7 @@ import android.content.Context;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.remoteprovisioner.GeekResponse;
 import com.android.remoteprovisioner.SettingsManager;
 
 import org.junit.After;
@@ -33,6 +35,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
 
 @RunWith(AndroidJUnit4.class)
 public class SettingsManagerTest {
@@ -62,7 +66,14 @@ public class SettingsManagerTest {
                      SettingsManager.getExpiringBy(sContext).toMillis());
         assertEquals(SettingsManager.URL_DEFAULT,
                      SettingsManager.getUrl(sContext));
-        assertEquals(0, SettingsManager.getFailureCounter(sContext));
+        assertEquals(SettingsManager.CSR_BATCH_SIZE_DEFAULT,
+                     SettingsManager.getCsrBatchSize(sContext));
+        assertEquals(SettingsManager.KEY_GENERATION_PAUSE_MS_DEFAULT,
+                     SettingsManager.getKeyGenerationPause(sContext).toMillis());
+        assertEquals(SettingsManager.SERVER_TIMEOUT_MS_DEFAULT,
+                     SettingsManager.getServerTimeout(sContext).toMillis());
+        assertEquals(SettingsManager.SCHEDULER_PERIOD_HOURS_DEFAULT,
+                     SettingsManager.getSchedulerPeriod(sContext).toHours());
     }
 
     @Test
@@ -79,6 +90,22 @@ public class SettingsManagerTest {
                      setId, SettingsManager.getId(sContext));
     }
 
+    @Test
+    public void testIdIsStableBeforeGenerated() throws Exception {
+        int id = SettingsManager.getId(sContext);
+        assertEquals(id, SettingsManager.getId(sContext));
+    }
+
+    @Test
+    public void testIdSurvivesClearPreferences() throws Exception {
+        int id = SettingsManager.getId(sContext);
+        assertTrue(SettingsManager.setDemandConfidence(sContext, 80));
+        SettingsManager.clearPreferences(sContext);
+        assertEquals(id, SettingsManager.getId(sContext));
+        assertEquals(SettingsManager.DEMAND_CONFIDENCE_PERCENT_DEFAULT,
+                     SettingsManager.getDemandConfidence(sContext));
+    }
+
     @Test
     public void testSetDeviceConfig() {
         int extraKeys = 12;
@@ -92,15 +119,90 @@ public class SettingsManagerTest {
     }
 
     @Test
-    public void testFailureCounter() {
-        assertEquals(1, SettingsManager.incrementFailureCounter(sContext));
-        assertEquals(1, SettingsManager.getFailureCounter(sContext));
-        for (int i = 1; i < 10; i++) {
-            assertEquals(i + 1, SettingsManager.incrementFailureCounter(sContext));
-        }
-        SettingsManager.clearFailureCounter(sContext);
-        assertEquals(0, SettingsManager.getFailureCounter(sContext));
-        SettingsManager.incrementFailureCounter(sContext);
-        assertEquals(1, SettingsManager.getFailureCounter(sContext));
+    public void testSetPerformanceConfig() {
+        int csrBatchSize = 50;
+        Duration keyGenerationPause = Duration.ofMillis(200);
+        Duration serverTimeout = Duration.ofSeconds(20);
+        Duration schedulerPeriod = Duration.ofHours(6);
+        Duration scheduleSpread = Duration.ofMinutes(30);
+        Map<Integer, int[]> poolWatermarks = Collections.singletonMap(1, new int[] {2, 8});
+        assertTrue("Method did not return true on write.",
+                   SettingsManager.setPerformanceConfig(sContext, csrBatchSize,
+                           keyGenerationPause, serverTimeout, schedulerPeriod, scheduleSpread,
+                           poolWatermarks));
+        assertEquals(csrBatchSize, SettingsManager.getCsrBatchSize(sContext));
+        assertEquals(keyGenerationPause, SettingsManager.getKeyGenerationPause(sContext));
+        assertEquals(serverTimeout, SettingsManager.getServerTimeout(sContext));
+        assertEquals(schedulerPeriod, SettingsManager.getSchedulerPeriod(sContext));
+        assertEquals(scheduleSpread, SettingsManager.getScheduleSpread(sContext));
+        assertEquals(2, SettingsManager.getLowWatermark(sContext, 1));
+        assertEquals(8, SettingsManager.getHighWatermark(sContext, 1));
+        assertFalse("Method should not return true when nothing changed.",
+                    SettingsManager.setPerformanceConfig(sContext, csrBatchSize,
+                            keyGenerationPause, serverTimeout, schedulerPeriod, scheduleSpread,
+                            poolWatermarks));
+        assertFalse("Method should not return true when nothing was sent.",
+                    SettingsManager.setPerformanceConfig(sContext,
+                            GeekResponse.NO_CSR_BATCH_SIZE_UPDATE, null, null, null, null, null));
+        assertEquals(csrBatchSize, SettingsManager.getCsrBatchSize(sContext));
+        assertEquals(schedulerPeriod, SettingsManager.getSchedulerPeriod(sContext));
+        assertEquals(scheduleSpread, SettingsManager.getScheduleSpread(sContext));
+    }
+
+    @Test
+    public void testScheduleJitter() throws Exception {
+        SettingsManager.generateAndSetId(sContext);
+        Duration jitter = SettingsManager.getScheduleJitter(sContext);
+        assertEquals(jitter, SettingsManager.getScheduleJitter(sContext));
+        assertTrue(jitter.compareTo(SettingsManager.getScheduleSpread(sContext)) < 0);
+        assertFalse(jitter.isNegative());
+        SettingsManager.setPerformanceConfig(sContext, GeekResponse.NO_CSR_BATCH_SIZE_UPDATE,
+                null, null, null, Duration.ZERO, null);
+        assertEquals(Duration.ZERO, SettingsManager.getScheduleJitter(sContext));
+    }
+
+    @Test
+    public void testDemandConfidence() throws Exception {
+        assertEquals(SettingsManager.DEMAND_CONFIDENCE_PERCENT_DEFAULT,
+                     SettingsManager.getDemandConfidence(sContext));
+        assertTrue(SettingsManager.setDemandConfidence(sContext, 80));
+        assertEquals(80, SettingsManager.getDemandConfidence(sContext));
+        assertFalse(SettingsManager.setDemandConfidence(sContext,
+                SettingsManager.DEMAND_CONFIDENCE_PERCENT_MAX + 1));
+        assertFalse(SettingsManager.setDemandConfidence(sContext,
+                SettingsManager.DEMAND_CONFIDENCE_PERCENT_MIN - 1));
+        assertEquals(80, SettingsManager.getDemandConfidence(sContext));
+    }
+
+    @Test
+    public void testMaxResponseSize() throws Exception {
+        assertEquals(SettingsManager.MAX_RESPONSE_KB_DEFAULT * 1024,
+                     SettingsManager.getMaxResponseBytes(sContext));
+        assertTrue(SettingsManager.setMaxResponseSize(sContext, 128));
+        assertEquals(128 * 1024, SettingsManager.getMaxResponseBytes(sContext));
+        assertFalse(SettingsManager.setMaxResponseSize(sContext,
+                SettingsManager.MAX_RESPONSE_KB_MAX + 1));
+        assertFalse(SettingsManager.setMaxResponseSize(sContext,
+                SettingsManager.MAX_RESPONSE_KB_MIN - 1));
+        assertEquals(128 * 1024, SettingsManager.getMaxResponseBytes(sContext));
+    }
+
+    @Test
+    public void testPoolWatermarks() throws Exception {
+        assertEquals(SettingsManager.WATERMARK_UNSET, SettingsManager.getLowWatermark(sContext, 1));
+        assertEquals(SettingsManager.WATERMARK_UNSET,
+                     SettingsManager.getHighWatermark(sContext, 1));
+        assertTrue(SettingsManager.setPerformanceConfig(sContext,
+                GeekResponse.NO_CSR_BATCH_SIZE_UPDATE, null, null, null, null,
+                Collections.singletonMap(1, new int[] {2, 8})));
+        assertEquals(2, SettingsManager.getLowWatermark(sContext, 1));
+        assertEquals(8, SettingsManager.getHighWatermark(sContext, 1));
+        assertEquals(SettingsManager.WATERMARK_UNSET, SettingsManager.getLowWatermark(sContext, 2));
+        // A pair is replaced as a whole, even if only one of its watermarks changed.
+        assertTrue(SettingsManager.setPerformanceConfig(sContext,
+                GeekResponse.NO_CSR_BATCH_SIZE_UPDATE, null, null, null, null,
+                Collections.singletonMap(1, new int[] {2, 10})));
+        assertEquals(2, SettingsManager.getLowWatermark(sContext, 1));
+        assertEquals(10, SettingsManager.getHighWatermark(sContext, 1));
     }
 }
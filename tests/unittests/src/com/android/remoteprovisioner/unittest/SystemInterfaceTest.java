@@ -131,6 +131,18 @@ public class SystemInterfaceTest {
         assertEquals(MajorType.ARRAY, dataItems.get(0).getMajorType());
         Array encMsg = (Array) dataItems.get(0);
         assertEquals(4, encMsg.getDataItems().size());
+        // bundle should contain a COSE_Mac0 message with an empty array of keys as the payload
+        bais = new ByteArrayInputStream(bundle);
+        dataItems = new CborDecoder(bais).decode();
+        assertEquals(1, dataItems.size());
+        assertEquals(MajorType.ARRAY, dataItems.get(0).getMajorType());
+        List<DataItem> macMsg = ((Array) dataItems.get(0)).getDataItems();
+        assertEquals(4, macMsg.size());
+        assertArrayEquals(new byte[] {(byte) 0xA1, 0x01, 0x05},
+                          ((ByteString) macMsg.get(0)).getBytes());
+        assertEquals(MajorType.MAP, macMsg.get(1).getMajorType());
+        assertArrayEquals(new byte[] {(byte) 0x80}, ((ByteString) macMsg.get(2)).getBytes());
+        assertEquals(MajorType.BYTE_STRING, macMsg.get(3).getMajorType());
     }
 
     private static Certificate[] generateKeyStoreKey(String alias) throws Exception {
@@ -82,6 +82,12 @@ public class Utils {
 
     public static X509Certificate signPublicKey(KeyPair issuerKeyPair, PublicKey publicKeyToSign)
             throws Exception {
+        return signPublicKey(issuerKeyPair, publicKeyToSign,
+                             Instant.now().plus(Duration.ofDays(1)));
+    }
+
+    public static X509Certificate signPublicKey(KeyPair issuerKeyPair, PublicKey publicKeyToSign,
+            Instant notAfter) throws Exception {
         X500Principal issuer = new X500Principal("CN=TEE");
         BigInteger serial = BigInteger.ONE;
         X500Principal subject = new X500Principal("CN=TEE");
@@ -91,7 +97,7 @@ public class Utils {
         certificateBuilder.setIssuerDN(issuer);
         certificateBuilder.setSerialNumber(serial);
         certificateBuilder.setNotBefore(Date.from(now));
-        certificateBuilder.setNotAfter(Date.from(now.plus(Duration.ofDays(1))));
+        certificateBuilder.setNotAfter(Date.from(notAfter));
         certificateBuilder.setSignatureAlgorithm("SHA256WITHECDSA");
         certificateBuilder.setSubjectDN(subject);
         certificateBuilder.setPublicKey(publicKeyToSign);
@@ -22,12 +22,16 @@ import static com.android.remoteprovisioner.unittest.Utils.signPublicKey;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.platform.test.annotations.Presubmit;
 
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.remoteprovisioner.LeafCertificate;
 import com.android.remoteprovisioner.X509Utils;
 
 import org.junit.Test;
@@ -35,7 +39,12 @@ import org.junit.runner.RunWith;
 
 import java.io.ByteArrayOutputStream;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
 import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 
 @RunWith(AndroidJUnit4.class)
 public class X509UtilsTest {
@@ -74,4 +83,79 @@ public class X509UtilsTest {
         System.arraycopy(formattedKey, 32 /* offset */, yPoint, 0 /* offset */, 32 /* length */);
         assertTrue(testKey.getPublic().equals(getP256PubKeyFromBytes(xPoint, yPoint)));
     }
+
+    private static byte[] buildChain(X509Certificate leafCert) throws Exception {
+        KeyPair root = generateEcdsaKeyPair();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(leafCert.getEncoded());
+        os.write(signPublicKey(root, root.getPublic()).getEncoded());
+        return os.toByteArray();
+    }
+
+    private static void assertScanMatchesCertificateFactory(byte[] chain) throws Exception {
+        X509Certificate leafCert = X509Utils.formatX509Certs(chain)[0];
+        LeafCertificate leaf = X509Utils.scanLeafCertificate(chain);
+        assertNotNull(leaf);
+        assertArrayEquals(leafCert.getEncoded(), leaf.getEncoded());
+        assertEquals(leafCert.getNotAfter().getTime(), leaf.getNotAfter());
+        byte[] rawPublicKey = new byte[LeafCertificate.RAW_PUBLIC_KEY_SIZE];
+        leaf.copyRawPublicKey(rawPublicKey, 0 /* destOffset */);
+        assertArrayEquals(X509Utils.getAndFormatRawPublicKey(leafCert), rawPublicKey);
+    }
+
+    @Presubmit
+    @Test
+    public void testScanLeafCertificate() throws Exception {
+        KeyPair leaf = generateEcdsaKeyPair();
+        Instant notAfter = Instant.now().plus(30, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+        byte[] chain = buildChain(signPublicKey(leaf, leaf.getPublic(), notAfter));
+        assertScanMatchesCertificateFactory(chain);
+        assertEquals(notAfter.toEpochMilli(), X509Utils.scanLeafCertificate(chain).getNotAfter());
+    }
+
+    @Test
+    public void testScanLeafCertificateGeneralizedTime() throws Exception {
+        // Dates from 2050 onwards are encoded as GeneralizedTime rather than UTCTime.
+        KeyPair leaf = generateEcdsaKeyPair();
+        Instant notAfter = Instant.parse("2061-03-04T05:06:07Z");
+        byte[] chain = buildChain(signPublicKey(leaf, leaf.getPublic(), notAfter));
+        assertScanMatchesCertificateFactory(chain);
+        assertEquals(notAfter.toEpochMilli(), X509Utils.scanLeafCertificate(chain).getNotAfter());
+    }
+
+    @Test
+    public void testScanLeafCertificateMalformedChain() throws Exception {
+        KeyPair leaf = generateEcdsaKeyPair();
+        byte[] chain = buildChain(signPublicKey(leaf, leaf.getPublic()));
+        assertNull(X509Utils.scanLeafCertificate(Arrays.copyOf(chain, chain.length - 1)));
+        assertNull(X509Utils.scanLeafCertificate(Arrays.copyOf(chain, chain.length + 1)));
+        assertNull(X509Utils.scanLeafCertificate(new byte[0]));
+    }
+
+    @Presubmit
+    @Test
+    public void testCopyRawPublicKeyMatchesGetAndFormatRawPublicKey() throws Exception {
+        KeyPair issuer = generateEcdsaKeyPair();
+        byte[] rawPublicKey = new byte[LeafCertificate.RAW_PUBLIC_KEY_SIZE + 2];
+        // Enough keys that some coordinates will have leading zero bytes, or a leading one bit,
+        // which the BigInteger based path has to special case.
+        for (int i = 0; i < 64; i++) {
+            X509Certificate cert = signPublicKey(issuer, generateEcdsaKeyPair().getPublic());
+            assertTrue(X509Utils.copyRawPublicKey(cert.getEncoded(), rawPublicKey,
+                                                  1 /* destOffset */));
+            assertArrayEquals(X509Utils.getAndFormatRawPublicKey(cert),
+                              Arrays.copyOfRange(rawPublicKey, 1, rawPublicKey.length - 1));
+        }
+    }
+
+    @Test
+    public void testCopyRawPublicKeyRejectsOtherCurves() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp384r1"));
+        X509Certificate cert =
+                signPublicKey(generateEcdsaKeyPair(), generator.generateKeyPair().getPublic());
+        byte[] rawPublicKey = new byte[LeafCertificate.RAW_PUBLIC_KEY_SIZE];
+        assertFalse(X509Utils.copyRawPublicKey(cert.getEncoded(), rawPublicKey,
+                                               0 /* destOffset */));
+    }
 }